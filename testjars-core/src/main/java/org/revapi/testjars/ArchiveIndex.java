@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableMap;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * The names of the top-level types in an archive (or a directory with classes), grouped by package. Built by reading
+ * just the list of the files in the archive, i.e. its central directory.
+ * <p>
+ * The top-level types are recognized by the names of their class files. Only the class files with {@code $} in their
+ * names are read, to tell the nested classes apart from the top-level classes with such names.
+ */
+final class ArchiveIndex {
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final Map<String, List<String>> typesByPackage;
+
+    private ArchiveIndex(Map<String, List<String>> typesByPackage) {
+        this.typesByPackage = unmodifiableMap(typesByPackage);
+    }
+
+    static ArchiveIndex of(Path archive) throws IOException {
+        return of(archive, emptyList());
+    }
+
+    /**
+     * Indexes only the provided packages and their subpackages. The directories of the other packages are not even
+     * listed.
+     *
+     * @param packages
+     *            the packages to index, all the packages if empty
+     */
+    static ArchiveIndex of(Path archive, Collection<String> packages) throws IOException {
+        Map<String, List<String>> typesByPackage = new TreeMap<>();
+
+        // consistent with the compiler that ignores the non-existent classpath entries
+        if (!Files.exists(archive)) {
+            return new ArchiveIndex(typesByPackage);
+        }
+
+        if (Files.isDirectory(archive)) {
+            index(archive, packages, typesByPackage);
+        } else {
+            try (FileSystem fs = FileSystems.newFileSystem(archive, (ClassLoader) null)) {
+                for (Path root : fs.getRootDirectories()) {
+                    index(root, packages, typesByPackage);
+                }
+            }
+        }
+
+        return new ArchiveIndex(typesByPackage);
+    }
+
+    /**
+     * @return the names of the packages containing at least one type
+     */
+    Collection<String> packages() {
+        return typesByPackage.keySet();
+    }
+
+    /**
+     * @return the fully qualified names of the top-level types in the provided package
+     */
+    List<String> typesIn(String packageName) {
+        return typesByPackage.getOrDefault(packageName, emptyList());
+    }
+
+    /**
+     * @return the fully qualified names of all the top-level types
+     */
+    Stream<String> types() {
+        return typesByPackage.values().stream().flatMap(List::stream);
+    }
+
+    /**
+     * @return an index containing just the provided packages (and their subpackages) of this index, this index if the
+     *         provided collection is empty
+     */
+    ArchiveIndex restrictedTo(Collection<String> packages) {
+        if (packages.isEmpty()) {
+            return this;
+        }
+
+        Map<String, List<String>> restricted = new TreeMap<>();
+        typesByPackage.forEach((pkg, types) -> {
+            if (isIncluded(pkg, packages)) {
+                restricted.put(pkg, types);
+            }
+        });
+
+        return new ArchiveIndex(restricted);
+    }
+
+    private static void index(Path root, Collection<String> packages, Map<String, List<String>> typesByPackage)
+            throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String name = nameOf(root, dir);
+                if (name.isEmpty()) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                String pkg = name.replace('/', '.');
+                return packages.isEmpty() || packages.stream().anyMatch(p -> isIncluded(pkg, p) || isIncluded(p, pkg))
+                        ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = nameOf(root, file);
+                if (!name.endsWith(CLASS_SUFFIX) || name.startsWith("META-INF/")) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                int lastSlash = name.lastIndexOf('/');
+                String simpleName = name.substring(lastSlash + 1, name.length() - CLASS_SUFFIX.length());
+                if (simpleName.equals("package-info") || simpleName.equals("module-info")) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                String packageName = lastSlash < 0 ? "" : name.substring(0, lastSlash).replace('/', '.');
+                if (!packages.isEmpty() && !isIncluded(packageName, packages)) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                if (simpleName.indexOf('$') >= 0 && isNested(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                String typeName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+
+                typesByPackage.computeIfAbsent(packageName, k -> new ArrayList<>()).add(typeName);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String nameOf(Path root, Path file) {
+        String name = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+        return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static boolean isIncluded(String packageName, Collection<String> packages) {
+        return packages.stream().anyMatch(p -> isIncluded(packageName, p));
+    }
+
+    /**
+     * @return true if the package is the same as the other package or its subpackage
+     */
+    private static boolean isIncluded(String packageName, String otherPackage) {
+        return packageName.equals(otherPackage) || otherPackage.isEmpty()
+                || (packageName.startsWith(otherPackage) && packageName.charAt(otherPackage.length()) == '.');
+    }
+
+    private static boolean isNested(Path classFile) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(classFile))) {
+            return JarIndex.isNested(in);
+        }
+    }
+}
@@ -16,38 +16,81 @@
  */
 package org.revapi.testjars;
 
+import static java.util.stream.Collectors.toList;
+
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import javax.annotation.Nullable;
 import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 
 /**
  * Represents the compiled jar. Provides access to the created files and also the means to analyze them.
+ * <p>
+ * If the jar was compiled into a directory on a non-default file system (see {@link CompilerManager}), the methods
+ * returning {@link File}s throw an {@link UnsupportedOperationException}. Use their {@link Path}-returning counterparts
+ * in that case.
+ * <p>
+ * If the {@link CompilerManager} has a {@link CompilerManager#diskBudget(long) disk budget}, the files of this jar may
+ * be deleted when not in use. They are transparently rebuilt when accessed through the methods of this class.
  */
-public final class CompiledJar {
-    private final File jarFile;
-    private final File classes;
-    private final List<File> classpath;
+public final class CompiledJar implements AutoCloseable {
+    private final Path jarFile;
+    private final Path classes;
+    private final List<Path> classpath;
     private final CompilerManager compiler;
-    private Environment environment;
+    private volatile Environment environment;
+    private final List<String> analyzedPackages;
+    private volatile JarIndex index;
+    private volatile CompiledJarClassLoader.Contents contents;
+
+    CompiledJar(Path jarFile, Path classes, List<Path> classpath, CompilerManager compiler,
+            @Nullable Environment environment) {
+        this(jarFile, classes, classpath, compiler, environment, Collections.emptyList());
+    }
 
-    CompiledJar(File jarFile, File classes, File[] classpath, CompilerManager compiler) {
+    private CompiledJar(Path jarFile, Path classes, List<Path> classpath, CompilerManager compiler,
+            @Nullable Environment environment, List<String> analyzedPackages) {
         this.jarFile = jarFile;
         this.classes = classes;
-        this.classpath = classpath == null ? Collections.emptyList() : Arrays.asList(classpath);
+        this.classpath = classpath == null ? Collections.emptyList() : Collections.unmodifiableList(classpath);
         this.compiler = compiler;
+        this.environment = environment;
+        this.analyzedPackages = analyzedPackages;
     }
 
     /**
      * @return the compiled jar file
      */
     public File jarFile() {
+        return jarPath().toFile();
+    }
+
+    /**
+     * @return the path to the compiled jar file
+     */
+    public Path jarPath() {
+        compiler.ensureMaterialized(jarFile);
         return jarFile;
     }
 
@@ -56,6 +99,16 @@ public final class CompiledJar {
      */
     @Nullable
     public File classes() {
+        Path classes = classesPath();
+        return classes == null ? null : classes.toFile();
+    }
+
+    /**
+     * @return the path to the root directory containing the compiled classes.
+     */
+    @Nullable
+    public Path classesPath() {
+        compiler.ensureMaterialized(jarFile);
         return classes;
     }
 
@@ -63,40 +116,343 @@ public final class CompiledJar {
      * The classpath this jar was compiled with.
      */
     public List<File> classpath() {
+        return classpathPaths().stream().map(Path::toFile).collect(toList());
+    }
+
+    /**
+     * The classpath this jar was compiled with.
+     */
+    public List<Path> classpathPaths() {
+        compiler.ensureAllMaterialized(classpath);
         return classpath;
     }
 
     /**
+     * The environment is created on the first call and returned by the subsequent calls until it is
+     * {@link Environment#close() closed}. After that, a new environment is created on the next call.
+     *
      * @return an environment similar to java annotation processing round environment that gives access to
      *         {@link Elements} and {@link Types} instances that can be used to analyze the compiled classes.
      */
     public Environment analyze() {
-        if (environment == null) {
-            try {
-                environment = compiler.probe(this);
-            } catch (IOException e) {
-                throw new IllegalStateException("Failed to analyze the compiled jar " + jarFile, e);
+        Environment env = environment;
+        if (env == null || env.isClosed()) {
+            synchronized (this) {
+                env = environment;
+                if (env == null || env.isClosed()) {
+                    try {
+                        env = compiler.probe(this);
+                        environment = env;
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Failed to analyze the compiled jar " + jarFile, e);
+                    }
+                    return env;
+                }
+            }
+        }
+
+        compiler.environmentUsed(env);
+        return env;
+    }
+
+    /**
+     * Returns a view of this jar whose {@link #analyze() analysis} only considers the types in the provided packages
+     * and their subpackages to be the contents of the jar, i.e. only they are returned from
+     * {@link Environment#typesInArchive()} and friends. The types from the other packages can still be looked up, the
+     * same way as the types of the dependencies - they're loaded by the compiler when first referenced.
+     * <p>
+     * This keeps the cost of the analysis of very large jars proportional to the part of the jar actually examined. The
+     * returned view has its own environment, the files are shared with this jar.
+     *
+     * @param packages
+     *            the fully qualified names of the packages to analyze, including their subpackages
+     *
+     * @return the restricted view of this jar
+     */
+    public CompiledJar restrictAnalysisTo(String... packages) {
+        return new CompiledJar(jarFile, classes, classpath, compiler, null,
+                Collections.unmodifiableList(Arrays.asList(packages.clone())));
+    }
+
+    /**
+     * @return the packages to restrict the analysis to, empty if the whole jar is analyzed
+     */
+    List<String> analyzedPackages() {
+        return analyzedPackages;
+    }
+
+    /**
+     * Reads the structure of the classes in the jar directly from the class files, without running the compiler. This
+     * is much cheaper than {@link #analyze()} but only gives access to the names, super types, modifiers and member
+     * signatures of the classes. The index is created on the first call and cached.
+     *
+     * @return the index of the classes in the jar
+     */
+    public JarIndex index() {
+        JarIndex ret = index;
+        if (ret == null) {
+            synchronized (this) {
+                ret = index;
+                if (ret == null) {
+                    try {
+                        ret = JarIndex.of(jarPath());
+                        index = ret;
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Failed to index the compiled jar " + jarFile, e);
+                    }
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Reads the central directory of the jar to provide quick access to the names, sizes and checksums of its entries,
+     * and to their contents. The jar file is read (memory-mapped if possible) once, on the first call.
+     * <p>
+     * The entries are released once this jar is {@link #close() closed}, evicted or its {@link CompilerManager} is
+     * cleaned up, and the next call reads the jar again. The returned instance should therefore not be kept for longer
+     * than needed.
+     *
+     * @return the entries of the jar
+     */
+    public JarEntries entries() {
+        return compiler.entries(jarFile);
+    }
+
+    /**
+     * Creates a class loader for the classes and resources of this jar that serves them from memory. The contents of
+     * the jar are read on the first call and shared by all the class loaders created by this method.
+     *
+     * @param parent
+     *            the parent class loader, null for the bootstrap class loader
+     *
+     * @return a new class loader for the contents of this jar
+     */
+    public CompiledJarClassLoader classLoader(@Nullable ClassLoader parent) {
+        CompiledJarClassLoader.Contents ret = contents;
+        if (ret == null) {
+            synchronized (this) {
+                ret = contents;
+                if (ret == null) {
+                    try {
+                        ret = CompiledJarClassLoader.Contents.of(jarPath());
+                        contents = ret;
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Failed to read the compiled jar " + jarFile, e);
+                    }
+                }
             }
         }
 
-        return environment;
+        return new CompiledJarClassLoader(parent, String.valueOf(jarFile.getFileName()), ret);
     }
 
-    public static final class Environment {
+    /**
+     * Closes the {@link #analyze() environment} of this jar, if any, releasing the compiler used to analyze it. The jar
+     * itself stays usable, including the analysis which creates a new environment when requested.
+     */
+    @Override
+    public void close() {
+        compiler.releaseEntries(jarFile);
+
+        Environment env = environment;
+        if (env != null) {
+            env.close();
+        }
+    }
+
+    /**
+     * Holds the compiler that analyzed the jar. The compiler and the jar files it reads are kept until the environment
+     * is {@link #close() closed} or the {@link CompilerManager} that created it is {@link CompilerManager#cleanUp()
+     * cleaned up}.
+     * <p>
+     * The compiler is not thread-safe. If the environment needs to be used by several threads at the same time, use the
+     * {@link #submit(Function)} method that runs the queries one by one in a thread dedicated to the environment.
+     */
+    public static final class Environment implements AutoCloseable {
+        private static final AtomicInteger CONFINED_THREAD_COUNT = new AtomicInteger();
+
         Elements elements;
         Types types;
         ProcessingEnvironment processingEnvironment;
+        ArchiveIndex archiveIndex;
+        /**
+         * The environment whose thread runs the {@link #submit(Function) submitted} queries of this environment, if not
+         * this one. Used by the environments sharing the same compiler.
+         */
+        Environment confinedTo;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile Runnable onClose;
+        private final Object confinementGuard = new Object();
+        private ThreadPoolExecutor confinedExecutor;
+        private volatile Thread confinedThread;
+        private volatile long lastUsed = System.nanoTime();
 
         public Elements elements() {
+            used();
             return elements;
         }
 
         public Types types() {
+            used();
             return types;
         }
 
         public ProcessingEnvironment processingEnvironment() {
+            used();
             return processingEnvironment;
         }
+
+        /**
+         * Unlike {@link Elements#getAllTypeElements(CharSequence)} et al., this only returns the types contained in the
+         * analyzed jar, not the types from its classpath or the JDK. The types are looked up lazily during the
+         * iteration.
+         *
+         * @return the top-level types contained in the analyzed jar
+         */
+        public Stream<TypeElement> typesInArchive() {
+            used();
+            return archiveIndex.types().map(elements::getTypeElement).filter(Objects::nonNull);
+        }
+
+        /**
+         * @return the packages containing at least one type in the analyzed jar
+         */
+        public Stream<PackageElement> packagesInArchive() {
+            used();
+            return archiveIndex.packages().stream().map(elements::getPackageElement).filter(Objects::nonNull);
+        }
+
+        /**
+         * @param packageName
+         *            the fully qualified name of the package, empty string for the default package
+         *
+         * @return the top-level types contained in the provided package of the analyzed jar, empty if there are none
+         */
+        public Stream<TypeElement> typesInPackage(String packageName) {
+            used();
+            return archiveIndex.typesIn(packageName).stream().map(elements::getTypeElement).filter(Objects::nonNull);
+        }
+
+        /**
+         * Runs the provided query in the thread dedicated to this environment. The queries submitted from any number of
+         * threads are run one after another, so they can safely use the elements and types of this environment, as long
+         * as the elements and types don't escape the query.
+         *
+         * @param query
+         *            the query to run
+         * @param <T>
+         *            the type of the result of the query
+         *
+         * @return the future result of the query, failed with {@link IllegalStateException} if the environment is
+         *         closed
+         */
+        public <T> CompletableFuture<T> submit(Function<? super Environment, ? extends T> query) {
+            Environment owner = confinedTo == null ? this : confinedTo;
+            try {
+                if (!isClosed()) {
+                    used();
+                    return CompletableFuture.supplyAsync(() -> query.apply(this), owner.confinedExecutor());
+                }
+            } catch (RejectedExecutionException e) {
+                // the owner has been closed in the meantime
+            }
+
+            CompletableFuture<T> ret = new CompletableFuture<>();
+            ret.completeExceptionally(new IllegalStateException("The environment is closed."));
+            return ret;
+        }
+
+        /**
+         * Releases the compiler and the jar files used by this environment. The elements and types obtained from this
+         * environment must not be used after this method is called.
+         * <p>
+         * The {@link #submit(Function) submitted} queries are finished before the compiler is released.
+         */
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                ThreadPoolExecutor executor;
+                synchronized (confinementGuard) {
+                    executor = confinedExecutor;
+                }
+
+                if (executor != null) {
+                    executor.shutdown();
+                    if (Thread.currentThread() != confinedThread) {
+                        awaitTermination(executor);
+                    }
+                }
+
+                Runnable r = onClose;
+                if (r != null) {
+                    r.run();
+                }
+            }
+        }
+
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        /**
+         * Marks the environment as used now. See {@link CompilerManager#environmentIdleTimeout(long, TimeUnit)}.
+         */
+        void used() {
+            lastUsed = System.nanoTime();
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} of the last use of this environment
+         */
+        long lastUsed() {
+            return lastUsed;
+        }
+
+        private Executor confinedExecutor() {
+            synchronized (confinementGuard) {
+                if (isClosed()) {
+                    throw new RejectedExecutionException();
+                }
+
+                if (confinedExecutor == null) {
+                    // a single thread, discarded when idle for a while. The next query then starts a new one.
+                    confinedExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                            r -> {
+                                Thread t = new Thread(r,
+                                        "revapi-testjars-environment-" + CONFINED_THREAD_COUNT.incrementAndGet());
+                                t.setDaemon(true);
+                                confinedThread = t;
+                                return t;
+                            });
+                    confinedExecutor.allowCoreThreadTimeOut(true);
+                }
+
+                return confinedExecutor;
+            }
+        }
+
+        private static void awaitTermination(ExecutorService executor) {
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // keep waiting for the queries to finish
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Adds an action to run when this environment is closed. The actions run in the order they were added.
+         */
+        synchronized void onClose(Runnable action) {
+            Runnable previous = onClose;
+            onClose = previous == null ? action : () -> {
+                previous.run();
+                action.run();
+            };
+        }
     }
 }
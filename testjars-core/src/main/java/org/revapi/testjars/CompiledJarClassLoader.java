@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * A class loader serving the classes and resources of a {@link CompiledJar} from memory. The contents of the jar are
+ * read once, when the first class loader for the jar is {@link CompiledJar#classLoader(ClassLoader) created}, and are
+ * shared by all the class loaders of the jar.
+ * <p>
+ * Once closed, the class loader no longer finds any new classes or resources. The classes already loaded stay usable.
+ * Unlike with {@link java.net.URLClassLoader}, no files are kept open by this class loader.
+ */
+public final class CompiledJarClassLoader extends ClassLoader implements AutoCloseable {
+    private static final String URL_PROTOCOL = "revapi-testjars";
+    private static final String CLASS_SUFFIX = ".class";
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final String jarName;
+    private volatile Contents contents;
+
+    CompiledJarClassLoader(@Nullable ClassLoader parent, String jarName, Contents contents) {
+        super(parent);
+        this.jarName = jarName;
+        this.contents = contents;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        Contents cnts = contents;
+        String resourceName = name.replace('.', '/') + CLASS_SUFFIX;
+        long location = cnts == null ? -1 : cnts.locate(resourceName);
+        if (location < 0) {
+            throw new ClassNotFoundException(name);
+        }
+
+        int lastDot = name.lastIndexOf('.');
+        if (lastDot > 0) {
+            definePackageIfNeeded(name.substring(0, lastDot));
+        }
+
+        return defineClass(name, cnts.data, Contents.offset(location), Contents.length(location));
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        Contents cnts = contents;
+        long location = cnts == null ? -1 : cnts.locate(name);
+        if (location < 0) {
+            return null;
+        }
+
+        try {
+            return new URL(URL_PROTOCOL, jarName, -1, "/" + name, new URLStreamHandler() {
+                @Override
+                protected URLConnection openConnection(URL u) {
+                    return new URLConnection(u) {
+                        @Override
+                        public void connect() {
+                            connected = true;
+                        }
+
+                        @Override
+                        public InputStream getInputStream() {
+                            return cnts.open(location);
+                        }
+
+                        @Override
+                        public long getContentLengthLong() {
+                            return Contents.length(location);
+                        }
+                    };
+                }
+            });
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException("Failed to create URL for resource " + name, e);
+        }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+        URL url = findResource(name);
+        return url == null ? Collections.emptyEnumeration() : Collections.enumeration(Collections.singleton(url));
+    }
+
+    /**
+     * Makes this class loader stop serving the contents of the jar, so that the memory can be reclaimed once the loaded
+     * classes are no longer used.
+     */
+    @Override
+    public void close() {
+        contents = null;
+    }
+
+    private void definePackageIfNeeded(String packageName) {
+        if (getPackage(packageName) == null) {
+            try {
+                definePackage(packageName, null, null, null, null, null, null, null);
+            } catch (IllegalArgumentException e) {
+                // defined concurrently by another thread
+            }
+        }
+    }
+
+    /**
+     * The contents of a jar packed into a single byte array. The location of each entry is encoded in a long with the
+     * offset in the upper and the length in the lower 32 bits.
+     */
+    static final class Contents {
+        private final byte[] data;
+        private final Map<String, Long> locations;
+
+        private Contents(byte[] data, Map<String, Long> locations) {
+            this.data = data;
+            this.locations = locations;
+        }
+
+        static Contents of(Path jar) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            Map<String, Long> locations = new HashMap<>();
+            byte[] buffer = new byte[8192];
+
+            try (ZipInputStream in = new ZipInputStream(Files.newInputStream(jar))) {
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+
+                    int offset = data.size();
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        data.write(buffer, 0, read);
+                    }
+
+                    locations.put(entry.getName(), ((long) offset << 32) | (data.size() - offset));
+                }
+            }
+
+            return new Contents(data.toByteArray(), locations);
+        }
+
+        long locate(String name) {
+            Long location = locations.get(name);
+            return location == null ? -1 : location;
+        }
+
+        InputStream open(long location) {
+            return new ByteArrayInputStream(data, offset(location), length(location));
+        }
+
+        static int offset(long location) {
+            return (int) (location >>> 32);
+        }
+
+        static int length(long location) {
+            return (int) location;
+        }
+    }
+}
@@ -16,14 +16,14 @@
  */
 package org.revapi.testjars;
 
+import static java.util.Collections.emptyList;
 import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
 import static java.util.Collections.singletonList;
-import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -31,7 +31,9 @@ import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
@@ -39,25 +41,39 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.jar.JarOutputStream;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 
+import javax.annotation.Nullable;
 import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
 import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
-import javax.tools.ToolProvider;
+import javax.tools.StandardLocation;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,17 +81,292 @@ import org.slf4j.LoggerFactory;
 /**
  * Takes care of compiling jar files. Keeps track of what was compiled and can delete the files afterwards using the
  * {@link #cleanUp()} method.
+ * <p>
+ * By default, the compiled jars are placed in a temporary directory on the default file system. The location of that
+ * directory can be changed either by passing it to the {@link #CompilerManager(Path) constructor} or by setting the
+ * {@value #COMPILE_ROOT_PROPERTY} system property. The directory doesn't have to be on the default file system, any NIO
+ * file system, including an in-memory one, can be used.
+ * <p>
+ * The {@link #cleanUp()} can either delete the files synchronously or in the background, see {@link CleanUpMode}. The
+ * default mode can be set using the {@value #CLEAN_UP_MODE_PROPERTY} system property. Compile roots left behind by
+ * crashed JVMs are removed in the background once a new compile root is created in the same directory.
+ * <p>
+ * The disk space taken up by the compiled jars can be limited using the {@link #diskBudget(long) disk budget}, the
+ * number of compilers kept alive for the analysis of the jars using the {@link #environmentBudget(int) environment
+ * budget}.
+ * <p>
+ * The compiler manager is thread-safe, so it can be used by tests executing in parallel. The {@link #cleanUp()} method
+ * waits for the builds that are in progress to finish.
+ * <p>
+ * All the compiler managers share the compiler and the threads running the probes. The compiler managers obtained using
+ * {@link #shared()} also share a single compile root, each of them using its own subdirectory in it. This keeps the
+ * number of threads and temporary directories flat no matter how many test classes run in the JVM.
  */
-public final class CompilerManager {
+public final class CompilerManager implements AutoCloseable {
+    /**
+     * The system property specifying the directory under which the compiled jars are placed. The special value
+     * {@value #TMPFS_COMPILE_ROOT} selects {@code /dev/shm} if it is available.
+     */
+    public static final String COMPILE_ROOT_PROPERTY = "revapi.testjars.compileRoot";
+
+    /**
+     * The value of the {@value #COMPILE_ROOT_PROPERTY} system property that selects the {@code /dev/shm} tmpfs as the
+     * compile root.
+     */
+    public static final String TMPFS_COMPILE_ROOT = "tmpfs";
+
+    /**
+     * The system property specifying the default {@link CleanUpMode}. The value is the case-insensitive name of one of
+     * the modes.
+     */
+    public static final String CLEAN_UP_MODE_PROPERTY = "revapi.testjars.cleanUpMode";
+
+    /**
+     * The system property specifying the default {@link #diskBudget(long) disk budget}. The value is a number of bytes,
+     * optionally followed by one of the {@code k}, {@code m} or {@code g} suffixes.
+     */
+    public static final String DISK_BUDGET_PROPERTY = "revapi.testjars.diskBudget";
+
+    /**
+     * The system property specifying the default {@link #environmentBudget(int) environment budget}.
+     */
+    public static final String ENVIRONMENT_BUDGET_PROPERTY = "revapi.testjars.environmentBudget";
+
+    /**
+     * The system property specifying whether the environments of the external jars are
+     * {@link #shareEnvironments(boolean) shared} by default.
+     */
+    public static final String SHARE_ENVIRONMENTS_PROPERTY = "revapi.testjars.shareEnvironments";
+
+    /**
+     * The system property specifying the default {@link #sharedEnvironmentIdleTimeout(long, TimeUnit) idle timeout} of
+     * the shared environments in milliseconds.
+     */
+    public static final String SHARED_ENVIRONMENT_IDLE_TIMEOUT_PROPERTY = "revapi.testjars.sharedEnvironmentIdleTimeout";
+
+    /**
+     * The system property specifying the default {@link #environmentIdleTimeout(long, TimeUnit) idle timeout} of the
+     * environments in milliseconds.
+     */
+    public static final String ENVIRONMENT_IDLE_TIMEOUT_PROPERTY = "revapi.testjars.environmentIdleTimeout";
+
+    /**
+     * The system property specifying whether to capture the stack traces of the creation of the environments. The
+     * environments that are not closed by the time the JVM exits are reported in the log, together with the stack
+     * traces if captured.
+     */
+    public static final String TRACK_ENVIRONMENTS_PROPERTY = "revapi.testjars.trackEnvironments";
+
     private static final Logger LOG = LoggerFactory.getLogger(CompilerManager.class);
 
-    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    private final JavaCompiler compiler = CompilerRuntime.compiler();
+
+    private final Path compileRootParent;
+
+    private final boolean sharedRoot;
+
+    private final Set<Path> compiledStuff = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The environments that have not been closed yet. Access-ordered, guarded by itself.
+     */
+    private final LinkedHashMap<CompiledJar.Environment, Boolean> liveEnvironments = new LinkedHashMap<>(16, 0.75f,
+            true);
+
+    private volatile int environmentBudget = defaultEnvironmentBudget();
+
+    private volatile boolean shareEnvironments = Boolean.getBoolean(SHARE_ENVIRONMENTS_PROPERTY);
+
+    private volatile long sharedEnvironmentIdleTimeoutMillis = defaultSharedEnvironmentIdleTimeoutMillis();
+
+    private volatile long environmentIdleTimeoutMillis = Long.getLong(ENVIRONMENT_IDLE_TIMEOUT_PROPERTY, 0);
+
+    private final ExecutorService compileProcess = CompilerRuntime.executor();
+
+    /**
+     * Builds and probes hold the read lock, {@link #cleanUp()} waits for them to finish by acquiring the write lock.
+     */
+    private final ReadWriteLock cleanUpLock = new ReentrantReadWriteLock();
+
+    private final Object compileRootGuard = new Object();
+
+    private volatile Path compileRoot;
 
-    private Map<File, Semaphore> compiledStuff = new HashMap<>();
+    private Closeable compileRootLock;
 
-    private ExecutorService compileProcess = Executors.newCachedThreadPool();
+    private volatile CleanUpMode cleanUpMode = defaultCleanUpMode();
 
-    private File compileRoot;
+    /**
+     * Access-ordered, guarded by itself. Also guards the {@link #diskUsage}.
+     */
+    private final LinkedHashMap<Path, JarRecipe> builtJars = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The cached entries of the jars not built by this manager, guarded by itself.
+     */
+    private final Map<Path, JarEntries> externalEntries = new HashMap<>();
+
+    private volatile long diskBudget = defaultDiskBudget();
+
+    private long diskUsage;
+
+    /**
+     * Creates a compiler manager placing the compiled jars into a temporary directory. The location of the directory is
+     * influenced by the {@value #COMPILE_ROOT_PROPERTY} system property.
+     */
+    public CompilerManager() {
+        this(defaultCompileRootParent());
+    }
+
+    /**
+     * Creates a compiler manager placing the compiled jars into a temporary directory created under the provided
+     * directory.
+     *
+     * @param compileRootParent
+     *            the directory to create the compile root in, possibly on a non-default file system, or null to use the
+     *            default temporary directory
+     */
+    public CompilerManager(@Nullable Path compileRootParent) {
+        this(compileRootParent, false);
+    }
+
+    private CompilerManager(@Nullable Path compileRootParent, boolean sharedRoot) {
+        this.compileRootParent = compileRootParent;
+        this.sharedRoot = sharedRoot;
+    }
+
+    /**
+     * Returns the thread pool shared by all the compiler managers. Its number of threads is bounded by the number of
+     * processors. Code building several jars concurrently can run the builds in it to keep the number of the compiler
+     * threads bounded no matter how many such builds run at the same time.
+     * <p>
+     * The tasks run in the pool must not wait for the other tasks run in it.
+     *
+     * @return the shared thread pool
+     */
+    public static Executor executor() {
+        return CompilerRuntime.executor();
+    }
+
+    /**
+     * Creates a compiler manager that places its jars into a compile root shared by all the compiler managers created
+     * using this method. The shared compile root is created on the first use and is deleted once all the compiler
+     * managers using it are {@link #cleanUp() cleaned up}. Its location is influenced by the
+     * {@value #COMPILE_ROOT_PROPERTY} system property.
+     *
+     * @return a new compiler manager using the shared compile root
+     */
+    public static CompilerManager shared() {
+        return new CompilerManager(defaultCompileRootParent(), true);
+    }
+
+    /**
+     * Sets the mode in which the {@link #cleanUp()} method removes the files.
+     *
+     * @param cleanUpMode
+     *            the clean up mode
+     *
+     * @return this instance
+     */
+    public CompilerManager cleanUpMode(CleanUpMode cleanUpMode) {
+        this.cleanUpMode = cleanUpMode;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of bytes the jars built by this manager can occupy on the disk. When the budget is
+     * exceeded, the files of the least recently used jars are deleted and transparently rebuilt the next time they're
+     * accessed through the {@link CompiledJar} methods. The jars that are being {@link CompiledJar#analyze() analyzed}
+     * are not evicted until their environment is closed, nor are their dependencies.
+     * <p>
+     * Note that once you obtain the path of a jar file, it is your responsibility to use it before the jar can be
+     * evicted by building or accessing other jars.
+     *
+     * @param bytes
+     *            the maximum number of bytes, zero or negative value means no limit
+     *
+     * @return this instance
+     */
+    public CompilerManager diskBudget(long bytes) {
+        this.diskBudget = bytes;
+        enforceDiskBudget(null);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of {@link CompiledJar.Environment environments} that can be open at the same time. Each
+     * environment holds a whole compiler with its symbol tables, so this effectively limits the heap occupied by the
+     * analyzed jars. When the budget is exceeded, the least recently used environments are closed. The next call to
+     * {@link CompiledJar#analyze()} on their jars transparently creates a new environment.
+     * <p>
+     * Note that the elements and types obtained from an environment cannot be used after the environment is closed.
+     * With a budget in place, always get the environment using {@link CompiledJar#analyze()} right before using it.
+     *
+     * @param maxEnvironments
+     *            the maximum number of open environments, zero or negative value means no limit
+     *
+     * @return this instance
+     */
+    public CompilerManager environmentBudget(int maxEnvironments) {
+        this.environmentBudget = maxEnvironments;
+        enforceEnvironmentBudget(null);
+        return this;
+    }
+
+    /**
+     * Sets whether the analysis of the external jars, i.e. the jars that were neither built nor are
+     * {@link #manage(Path) managed} by this manager, is shared with the other compiler managers in the JVM. The shared
+     * environments are identified by the contents of the analyzed jar and its classpath, so analyzing the same jars in
+     * many test classes only runs the compiler once.
+     * <p>
+     * The compiler behind a shared environment is kept alive for as long as any compiler manager uses it and for the
+     * {@link #sharedEnvironmentIdleTimeout(long, TimeUnit) idle timeout} afterwards. Note that the compiler is not
+     * thread-safe, so the shared environments should be queried using {@link CompiledJar.Environment#submit} if they
+     * can be used by several threads at the same time.
+     *
+     * @param share
+     *            whether to share the environments
+     *
+     * @return this instance
+     */
+    public CompilerManager shareEnvironments(boolean share) {
+        this.shareEnvironments = share;
+        return this;
+    }
+
+    /**
+     * Sets how long a {@link #shareEnvironments(boolean) shared environment} stays alive after it was closed by the
+     * last compiler manager using it.
+     *
+     * @param timeout
+     *            the timeout, zero means the environment is discarded immediately
+     * @param unit
+     *            the unit of the timeout
+     *
+     * @return this instance
+     */
+    public CompilerManager sharedEnvironmentIdleTimeout(long timeout, TimeUnit unit) {
+        this.sharedEnvironmentIdleTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets how long an environment created by this manager can stay unused before it is closed automatically. This
+     * releases the compilers of the environments forgotten by the tests. An environment is used when returned from
+     * {@link CompiledJar#analyze()} or when any of its methods are called. The elements and types obtained from the
+     * environment must not be used for longer than the timeout without touching the environment.
+     *
+     * @param timeout
+     *            the timeout, zero (the default) means the environments are never closed automatically
+     * @param unit
+     *            the unit of the timeout
+     *
+     * @return this instance
+     */
+    public CompilerManager environmentIdleTimeout(long timeout, TimeUnit unit) {
+        this.environmentIdleTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
 
     /**
      * Instantiates a builder using which the contents of a compiled jar file can be composed.
@@ -119,151 +410,828 @@ public final class CompilerManager {
      * 
      * @return object using which the classes within the jar file can be inspected.
      */
-    public CompiledJar jarFrom(File jarFile, File... dependencies) {
-        return new CompiledJar(jarFile, null, dependencies, this);
+    public CompiledJar jarFrom(File jarFile, File... dependencies) {
+        return jarFrom(jarFile.toPath(), Stream.of(dependencies).map(File::toPath).toArray(Path[]::new));
+    }
+
+    /**
+     * Similar to {@link #jarFrom(File, File...)} but the files can be located on any file system.
+     *
+     * @param jarFile
+     *            the jar file to analyze
+     * @param dependencies
+     *            the additional dependencies that need to be present on the classpath to be able to analyze the jar
+     *            file
+     *
+     * @return object using which the classes within the jar file can be inspected.
+     */
+    public CompiledJar jarFrom(Path jarFile, Path... dependencies) {
+        return new CompiledJar(jarFile, null, Arrays.asList(dependencies), this, null);
+    }
+
+    /**
+     * Given file will be automatically cleaned up after the test.
+     *
+     * @param jarFile
+     *            a file to delete once the test is finished.
+     */
+    public void manage(File jarFile) {
+        manage(jarFile.toPath());
+    }
+
+    /**
+     * Given file will be automatically cleaned up after the test.
+     *
+     * @param jarFile
+     *            a file to delete once the test is finished.
+     */
+    public void manage(Path jarFile) {
+        compiledStuff.add(jarFile);
+    }
+
+    /**
+     * Analyzes the two jars concurrently. This is useful when comparing two versions of an API which would otherwise
+     * pay for the start of the compiler twice, one after the other. The old jar is analyzed in a thread of its own, so
+     * the analyses don't wait for the jars being built at the same time.
+     * <p>
+     * The environments are the same as the ones returned from {@link CompiledJar#analyze()} of the respective jars. If
+     * an {@link #environmentBudget(int) environment budget} is set, it should allow for both of them.
+     *
+     * @param oldJar
+     *            the old version of the jar
+     * @param newJar
+     *            the new version of the jar
+     *
+     * @return the pair of environments that can be closed together
+     */
+    public EnvironmentPair analyzePair(CompiledJar oldJar, CompiledJar newJar) {
+        // not the bounded compiler pool, where the analysis could wait behind the queued builds
+        Future<CompiledJar.Environment> oldAnalysis = CompilerRuntime.parkingExecutor().submit(oldJar::analyze);
+
+        CompiledJar.Environment newEnv;
+        try {
+            newEnv = newJar.analyze();
+        } catch (RuntimeException | Error e) {
+            // the analysis can't be interrupted, so wait for it to be able to close its environment
+            try {
+                oldAnalysis.get().close();
+            } catch (ExecutionException ignored) {
+                // nothing to close
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            throw e;
+        }
+
+        try {
+            return new EnvironmentPair(oldAnalysis.get(), newEnv);
+        } catch (ExecutionException e) {
+            newEnv.close();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IllegalStateException("Failed to analyze the compiled jar " + oldJar.jarPath(), cause);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            newEnv.close();
+            throw new IllegalStateException("Thread interrupted");
+        }
+    }
+
+    /**
+     * If you're using the Jar instance as a JUnit rule, you don't have to call this method. Otherwise this can be used
+     * to remove the compiled jar files from the filesystem.
+     * <p>
+     * Depending on the configured {@link #cleanUpMode(CleanUpMode) clean up mode}, the files are either deleted before
+     * this method returns or moved out of the way and deleted in the background.
+     */
+    public void cleanUp() {
+        cleanUpLock.writeLock().lock();
+        try {
+            List<CompiledJar.Environment> environments;
+            synchronized (liveEnvironments) {
+                environments = new ArrayList<>(liveEnvironments.keySet());
+            }
+            environments.forEach(CompiledJar.Environment::close);
+
+            List<JarRecipe> recipes;
+            synchronized (builtJars) {
+                recipes = new ArrayList<>(builtJars.values());
+            }
+            recipes.forEach(JarRecipe::releaseEntries);
+            synchronized (externalEntries) {
+                externalEntries.clear();
+            }
+
+            synchronized (compileRootGuard) {
+                Path root = compileRoot;
+
+                if (compileRootLock != null) {
+                    try {
+                        compileRootLock.close();
+                    } catch (IOException e) {
+                        LOG.debug("Failed to release the lock on the compile root " + root, e);
+                    }
+                }
+
+                for (Path p : compiledStuff) {
+                    if (root == null || !isUnder(root, p)) {
+                        cleanUpMode.delete(p);
+                    }
+                }
+
+                if (root != null) {
+                    cleanUpMode.delete(root);
+                    LeakDetector.compileRootDeleted(root);
+
+                    if (sharedRoot) {
+                        CompilerRuntime.releaseSharedRoot(cleanUpMode);
+                    }
+                }
+
+                compiledStuff.clear();
+                compileRoot = null;
+                compileRootLock = null;
+            }
+
+            synchronized (builtJars) {
+                builtJars.clear();
+                diskUsage = 0;
+            }
+        } finally {
+            cleanUpLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #cleanUp()}. Makes it possible to use the compiler manager in a try-with-resources block.
+     */
+    @Override
+    public void close() {
+        cleanUp();
+    }
+
+    /**
+     * Makes sure that the files of the provided jar are present if the jar was built by this manager and marks it as
+     * the most recently used one.
+     */
+    void ensureMaterialized(Path jar) {
+        cleanUpLock.readLock().lock();
+        try {
+            JarRecipe recipe = findRecipe(jar);
+            if (recipe == null) {
+                return;
+            }
+
+            boolean rebuilt;
+            try {
+                rebuilt = recipe.ensureMaterialized();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to rebuild the evicted jar " + jar, e);
+            }
+
+            if (rebuilt) {
+                enforceDiskBudget(recipe);
+            }
+        } finally {
+            cleanUpLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the entries of the provided jar, rebuilding the jar if it was built by this manager and evicted. The
+     * entries are cached until {@link #releaseEntries(Path) released}, the jar is evicted or this manager is cleaned
+     * up, so that the memory-mapped jar doesn't outlive its file or keep it open.
+     *
+     * @return the entries of the jar
+     */
+    JarEntries entries(Path jar) {
+        cleanUpLock.readLock().lock();
+        try {
+            JarRecipe recipe = findRecipe(jar);
+            if (recipe == null) {
+                synchronized (externalEntries) {
+                    JarEntries ret = externalEntries.get(jar);
+                    if (ret == null) {
+                        try {
+                            ret = JarEntries.of(jar);
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Failed to read the entries of the jar " + jar, e);
+                        }
+                        externalEntries.put(jar, ret);
+                    }
+                    return ret;
+                }
+            }
+
+            boolean rebuilt;
+            JarEntries ret;
+            try {
+                synchronized (recipe) {
+                    rebuilt = recipe.ensureMaterialized();
+                    ret = recipe.entries();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read the entries of the compiled jar " + jar, e);
+            }
+
+            if (rebuilt) {
+                enforceDiskBudget(recipe);
+            }
+
+            return ret;
+        } finally {
+            cleanUpLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Releases the cached {@link #entries(Path) entries} of the provided jar.
+     */
+    void releaseEntries(Path jar) {
+        JarRecipe recipe = findRecipe(jar);
+        if (recipe != null) {
+            recipe.releaseEntries();
+        } else {
+            synchronized (externalEntries) {
+                externalEntries.remove(jar);
+            }
+        }
+    }
+
+    /**
+     * Makes sure that the provided jars, if built by this manager, are present and are not evicted until released.
+     *
+     * @return the recipes of the acquired jars, to be {@link #release(List) released} once no longer used.
+     */
+    private List<JarRecipe> acquire(List<Path> jars) throws IOException {
+        List<JarRecipe> ret = new ArrayList<>(jars.size());
+        try {
+            for (Path jar : jars) {
+                JarRecipe recipe = findRecipe(jar);
+                if (recipe != null) {
+                    recipe.acquire();
+                    ret.add(recipe);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            release(ret);
+            throw e;
+        }
+
+        return ret;
+    }
+
+    private static void release(List<JarRecipe> recipes) {
+        recipes.forEach(JarRecipe::release);
+    }
+
+    @Nullable
+    private JarRecipe findRecipe(Path jar) {
+        synchronized (builtJars) {
+            return builtJars.get(jar);
+        }
+    }
+
+    /**
+     * Makes sure that the files of all the provided jars that were built by this manager are present at the same time.
+     * The jars are pinned while being rebuilt, so unlike calling {@link #ensureMaterialized(Path)} for each of them,
+     * rebuilding one of the jars can't evict another one.
+     */
+    void ensureAllMaterialized(List<Path> jars) {
+        cleanUpLock.readLock().lock();
+        try {
+            List<JarRecipe> pinned;
+            try {
+                pinned = acquire(jars);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to rebuild the evicted jars " + jars, e);
+            }
+
+            try {
+                enforceDiskBudget(null);
+            } finally {
+                release(pinned);
+            }
+        } finally {
+            cleanUpLock.readLock().unlock();
+        }
+    }
+
+    private void enforceDiskBudget(@Nullable JarRecipe justUsed) {
+        long budget = diskBudget;
+        if (budget <= 0) {
+            return;
+        }
+
+        List<JarRecipe> candidates;
+        synchronized (builtJars) {
+            if (diskUsage <= budget) {
+                return;
+            }
+
+            // the iteration order of the access-ordered map is from the least recently used
+            candidates = new ArrayList<>(builtJars.values());
+        }
+
+        for (JarRecipe r : candidates) {
+            synchronized (builtJars) {
+                if (diskUsage <= budget) {
+                    return;
+                }
+            }
+
+            if (r != justUsed && r.evict()) {
+                LOG.debug("Evicted jar {} to stay within the disk budget of {} bytes.", r.jar, budget);
+            }
+        }
+    }
+
+    /**
+     * Marks the provided environment as the most recently used one.
+     */
+    void environmentUsed(CompiledJar.Environment env) {
+        env.used();
+        synchronized (liveEnvironments) {
+            liveEnvironments.get(env);
+        }
+    }
+
+    private void environmentOpened(CompiledJar.Environment env) {
+        synchronized (liveEnvironments) {
+            liveEnvironments.put(env, Boolean.TRUE);
+        }
+
+        env.onClose(() -> environmentClosed(env));
+        LeakDetector.environmentOpened(env);
+
+        long idleTimeout = environmentIdleTimeoutMillis;
+        if (idleTimeout > 0) {
+            scheduleIdleCheck(env, idleTimeout);
+        }
+
+        enforceEnvironmentBudget(env);
+    }
+
+    private void scheduleIdleCheck(CompiledJar.Environment env, long delayMillis) {
+        CompilerRuntime.scheduler().schedule(() -> {
+            long idleTimeout = environmentIdleTimeoutMillis;
+            if (env.isClosed() || idleTimeout <= 0) {
+                return;
+            }
+
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - env.lastUsed());
+            if (idle >= idleTimeout) {
+                LOG.debug("Closing an environment unused for {} ms.", idle);
+                // closing waits for the submitted queries to finish, which mustn't block the scheduler
+                compileProcess.execute(env::close);
+            } else {
+                scheduleIdleCheck(env, idleTimeout - idle);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void environmentClosed(CompiledJar.Environment env) {
+        synchronized (liveEnvironments) {
+            liveEnvironments.remove(env);
+        }
+    }
+
+    private void enforceEnvironmentBudget(@Nullable CompiledJar.Environment justOpened) {
+        int budget = environmentBudget;
+        if (budget <= 0) {
+            return;
+        }
+
+        List<CompiledJar.Environment> evicted = new ArrayList<>();
+        synchronized (liveEnvironments) {
+            int excess = liveEnvironments.size() - budget;
+            // the iteration order of the access-ordered map is from the least recently used
+            Iterator<CompiledJar.Environment> it = liveEnvironments.keySet().iterator();
+            while (excess > 0 && it.hasNext()) {
+                CompiledJar.Environment env = it.next();
+                if (env != justOpened) {
+                    evicted.add(env);
+                    excess--;
+                }
+            }
+        }
+
+        for (CompiledJar.Environment env : evicted) {
+            LOG.debug("Closing an environment to stay within the budget of {} environments.", budget);
+            env.close();
+        }
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        long[] size = new long[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                size[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+
+    private static boolean isUnder(Path root, Path path) {
+        return root.getFileSystem() == path.getFileSystem() && path.startsWith(root);
+    }
+
+    CompiledJar.Environment probe(CompiledJar compiledJar) throws IOException {
+        cleanUpLock.readLock().lock();
+        try {
+            return doProbe(compiledJar);
+        } finally {
+            cleanUpLock.readLock().unlock();
+        }
+    }
+
+    private CompiledJar.Environment doProbe(CompiledJar compiledJar) throws IOException {
+        Path jar = compiledJar.jarPath();
+
+        List<Path> classpath = new ArrayList<>(compiledJar.classpathPaths().size() + 1);
+        classpath.add(jar);
+        classpath.addAll(compiledJar.classpathPaths());
+
+        List<String> packages = compiledJar.analyzedPackages();
+
+        CompiledJar.Environment ret;
+        if (shareEnvironments && isExternal(classpath)) {
+            // the shared compiler may be used by views restricted to different packages, so it indexes the whole jar
+            ret = EnvironmentCache.acquire(classpath, sharedEnvironmentIdleTimeoutMillis,
+                    () -> createProbe(jar, classpath, emptyList(), emptyList()));
+            ret.archiveIndex = ret.archiveIndex.restrictedTo(packages);
+        } else {
+            // the probe keeps reading the classpath for as long as it lives, so the jars are only released once the
+            // environment is closed
+            List<JarRecipe> pinned = acquire(classpath);
+
+            // the jars built by this manager are read from the directories they were composed from. There's no need
+            // to inflate what has just been compressed.
+            List<Path> exploded = classpath.stream().map(this::explodedForm).collect(toList());
+            ret = createProbe(exploded.get(0), exploded, packages, pinned);
+        }
+
+        environmentOpened(ret);
+
+        return ret;
+    }
+
+    /**
+     * Creates an environment analyzing the provided classpath. The environment is not tracked by this manager.
+     *
+     * @param packages
+     *            the packages of the jar to analyze, all of them if empty. The rest of the jar is only available to the
+     *            compiler as a dependency.
+     * @param pinned
+     *            the jars to release once the environment is closed (or fails to be created)
+     */
+    private CompiledJar.Environment createProbe(Path jar, List<Path> classpath, List<String> packages,
+            List<JarRecipe> pinned) throws IOException {
+        ArchiveIndex index;
+        PathJavaFileManager fileManager;
+        try {
+            index = ArchiveIndex.of(jar, packages);
+            // we're not interested in the compiled probe classes, so they're not written anywhere
+            fileManager = createFileManager(null, classpath);
+        } catch (IOException | RuntimeException e) {
+            release(pinned);
+            throw e;
+        }
+
+        List<JavaFileObject> sourceObjects = new ArrayList<>(2);
+        sourceObjects.add(new MarkerAnnotationObject());
+        sourceObjects.add(new ArchiveProbeObject());
+
+        JavaCompiler.CompilationTask task = compiler.getTask(new PrintWriter(System.out), fileManager, null, null,
+                singletonList(ArchiveProbeObject.CLASS_NAME), sourceObjects);
+
+        CompiledJar.Environment ret = new CompiledJar.Environment();
+        ret.archiveIndex = index;
+
+        if (CompilerRuntime.canAnalyze(task)) {
+            analyzeInPlace(jar, task, fileManager, pinned, ret);
+        } else {
+            analyzeInParkedThread(jar, task, fileManager, pinned, ret);
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return the directory with the classes of the provided jar if it was built by this manager, the jar itself
+     *         otherwise
+     */
+    private Path explodedForm(Path jar) {
+        JarRecipe recipe = findRecipe(jar);
+        return recipe == null || !Files.isDirectory(recipe.classes) ? jar : recipe.classes;
+    }
+
+    /**
+     * @return true if none of the provided files is built or managed by this manager, i.e. they're not going to be
+     *         deleted by it
+     */
+    private boolean isExternal(List<Path> classpath) {
+        Path root = compileRoot;
+        for (Path p : classpath) {
+            if (findRecipe(p) != null || (root != null && isUnder(root, p))) {
+                return false;
+            }
+
+            for (Path managed : compiledStuff) {
+                if (isUnder(managed, p)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
     }
 
     /**
-     * Given file will be automatically cleaned up after the test.
-     *
-     * @param jarFile
-     *            a file to delete once the test is finished.
+     * Only runs the compiler up to the analysis, in the current thread. The compiler context is kept alive by the
+     * environment until it is closed.
      */
-    public void manage(File jarFile) {
-        compiledStuff.put(jarFile, null);
+    private void analyzeInPlace(Path jar, JavaCompiler.CompilationTask task, PathJavaFileManager fileManager,
+            List<JarRecipe> pinned, CompiledJar.Environment env) throws IOException {
+        task.setProcessors(singletonList(new ProbeProcessor(env, null)));
+
+        try {
+            CompilerRuntime.analyze(task);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(fileManager, jar);
+            release(pinned);
+            throw e;
+        }
+
+        env.onClose(() -> {
+            closeQuietly(fileManager, jar);
+            release(pinned);
+        });
     }
 
     /**
-     * If you're using the Jar instance as a JUnit rule, you don't have to call this method. Otherwise this can be used
-     * to remove the compiled jar files from the filesystem.
+     * The environments of an old and a new version of a jar, analyzed by
+     * {@link #analyzePair(CompiledJar, CompiledJar)}.
      */
-    public void cleanUp() {
-        for (Map.Entry<File, Semaphore> e : compiledStuff.entrySet()) {
-            if (e.getValue() != null) {
-                e.getValue().release();
-            }
+    public static final class EnvironmentPair implements AutoCloseable {
+        private final CompiledJar.Environment oldEnvironment;
+        private final CompiledJar.Environment newEnvironment;
+
+        private EnvironmentPair(CompiledJar.Environment oldEnvironment, CompiledJar.Environment newEnvironment) {
+            this.oldEnvironment = oldEnvironment;
+            this.newEnvironment = newEnvironment;
+        }
 
-            deleteRecursively(e.getKey());
+        public CompiledJar.Environment oldEnvironment() {
+            return oldEnvironment;
         }
 
-        if (compileRoot != null) {
-            deleteRecursively(compileRoot);
+        public CompiledJar.Environment newEnvironment() {
+            return newEnvironment;
         }
 
-        compiledStuff.clear();
-        compileRoot = null;
+        /**
+         * Closes both environments.
+         */
+        @Override
+        public void close() {
+            try {
+                oldEnvironment.close();
+            } finally {
+                newEnvironment.close();
+            }
+        }
     }
 
-    private void deleteRecursively(File dir) {
-        try {
-            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    Files.delete(file);
-                    return FileVisitResult.CONTINUE;
-                }
+    /**
+     * The fallback for compilers not supporting the javac API. The compilation is suspended in a thread of its own once
+     * the annotation processing is over until the environment is closed.
+     */
+    private void analyzeInParkedThread(Path jar, JavaCompiler.CompilationTask task, PathJavaFileManager fileManager,
+            List<JarRecipe> pinned, CompiledJar.Environment env) {
+        Semaphore closeSemaphore = new Semaphore(0);
+        Semaphore initSemaphore = new Semaphore(0);
+
+        task.setProcessors(singletonList(new ProbeProcessor(env, () -> {
+            initSemaphore.release();
+
+            try {
+                closeSemaphore.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        })));
+
+        CompilerRuntime.parkingExecutor().submit(() -> {
+            try {
+                task.call();
+            } finally {
+                closeQuietly(fileManager, jar);
+                release(pinned);
+            }
+        });
 
-                @Override
-                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                    Files.delete(dir);
-                    return FileVisitResult.CONTINUE;
-                }
-            });
-        } catch (IOException ex) {
-            LOG.warn("Failed to clean up directory " + dir.getAbsolutePath(), ex);
+        try {
+            initSemaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeSemaphore.release();
+            throw new IllegalStateException("Thread interrupted");
         }
+
+        env.onClose(closeSemaphore::release);
     }
 
-    CompiledJar.Environment probe(CompiledJar compiledJar) throws IOException {
-        File dir = compiledJar.jarFile().toPath().startsWith(getCompileRoot().toPath())
-                ? new File(compiledJar.jarFile().getParent(), "probe")
-                : new File(getCompileRoot(), compiledJar.jarFile().getName() + "-probe");
+    private static void closeQuietly(PathJavaFileManager fileManager, Path jar) {
+        try {
+            fileManager.close();
+        } catch (IOException e) {
+            LOG.debug("Failed to close the file manager used for " + jar, e);
+        }
+    }
 
-        if (!dir.mkdirs()) {
-            throw new IllegalArgumentException("Failed to create directory " + dir.getAbsolutePath());
+    private static void closeProcessorsQuietly(Closeable closeable, Path jar) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.debug("Failed to close the annotation processors of jar " + jar + ".", e);
         }
+    }
 
-        String classpathString = compiledJar.classpath().isEmpty() ? compiledJar.jarFile().getAbsolutePath()
-                : Stream.concat(Stream.of(compiledJar.jarFile()), compiledJar.classpath().stream())
-                        .map(File::getAbsolutePath).collect(joining(File.pathSeparator));
+    /**
+     * Sets the processors of the task to the provided processor together with the processors that javac would otherwise
+     * discover on the classpath.
+     *
+     * @return the class loader of the discovered processors to close once the compilation is no longer needed
+     */
+    private static Closeable setProcessors(JavaCompiler.CompilationTask task, PathJavaFileManager fileManager,
+            Processor processor) {
+        ClassLoader loader = fileManager.getClassLoader(StandardLocation.CLASS_PATH);
 
-        List<String> options = Arrays.asList("-cp", classpathString, "-d", dir.getAbsolutePath());
+        List<Processor> processors = new ArrayList<>();
+        if (loader != null) {
+            ServiceLoader.load(Processor.class, loader).forEach(processors::add);
+        }
+        processors.add(processor);
 
-        List<JavaFileObject> sourceObjects = new ArrayList<>(2);
-        sourceObjects.add(new MarkerAnnotationObject());
-        sourceObjects.add(new ArchiveProbeObject());
+        task.setProcessors(processors);
+
+        return loader instanceof Closeable ? (Closeable) loader : () -> {
+        };
+    }
 
+    private PathJavaFileManager createFileManager(@Nullable Path classOutput, List<Path> classpath) throws IOException {
         StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, Locale.getDefault(),
                 StandardCharsets.UTF_8);
 
-        JavaCompiler.CompilationTask task = compiler.getTask(new PrintWriter(System.out), fileManager, null, options,
-                singletonList(ArchiveProbeObject.CLASS_NAME), sourceObjects);
+        // the classpath must always be set, even if empty, otherwise javac would use the classpath of the current JVM
+        fileManager.setLocation(StandardLocation.CLASS_PATH, classpath.stream()
+                .filter(PathJavaFileManager::isOnDefaultFileSystem).map(Path::toFile).collect(toList()));
 
-        final Semaphore cleanUpSemaphore = new Semaphore(0);
-        final Semaphore initSemaphore = new Semaphore(0);
+        List<Path> foreignClassPath = classpath.stream().filter(p -> !PathJavaFileManager.isOnDefaultFileSystem(p))
+                .collect(toList());
 
-        final CompiledJar.Environment ret = new CompiledJar.Environment();
+        return new PathJavaFileManager(fileManager, classOutput, foreignClassPath);
+    }
 
-        task.setProcessors(singletonList(new AbstractProcessor() {
-            @Override
-            public SourceVersion getSupportedSourceVersion() {
-                return SourceVersion.latest();
+    private Path getCompileRoot() throws IOException {
+        Path root = compileRoot;
+        if (root == null) {
+            synchronized (compileRootGuard) {
+                root = compileRoot;
+                if (root == null) {
+                    if (sharedRoot) {
+                        Path shared = CompilerRuntime.acquireSharedRoot(compileRootParent);
+                        try {
+                            root = Files.createTempDirectory(shared, "scope");
+                        } catch (IOException | RuntimeException e) {
+                            CompilerRuntime.releaseSharedRoot(cleanUpMode);
+                            throw e;
+                        }
+                    } else {
+                        root = CompilerRuntime.createCompileRoot(compileRootParent);
+                        compileRootLock = Trash.lock(root);
+                    }
+                    compileRoot = root;
+                    LeakDetector.compileRootCreated(root);
+                }
             }
+        }
 
-            @Override
-            public Set<String> getSupportedAnnotationTypes() {
-                return new HashSet<>(singletonList(MarkerAnnotationObject.CLASS_NAME));
-            }
+        return root;
+    }
 
-            @Override
-            public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
-                if (roundEnv.processingOver()) {
-                    ret.elements = processingEnv.getElementUtils();
-                    ret.types = processingEnv.getTypeUtils();
-                    ret.processingEnvironment = processingEnv;
+    private static long defaultDiskBudget() {
+        String budget = System.getProperty(DISK_BUDGET_PROPERTY);
+        if (budget == null || budget.isEmpty()) {
+            return 0;
+        }
 
-                    initSemaphore.release();
+        budget = budget.trim().toLowerCase(Locale.ROOT);
+        long multiplier;
+        switch (budget.charAt(budget.length() - 1)) {
+        case 'k':
+            multiplier = 1024;
+            break;
+        case 'm':
+            multiplier = 1024 * 1024;
+            break;
+        case 'g':
+            multiplier = 1024 * 1024 * 1024;
+            break;
+        default:
+            multiplier = 1;
+        }
 
-                    try {
-                        cleanUpSemaphore.acquire();
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
+        if (multiplier != 1) {
+            budget = budget.substring(0, budget.length() - 1);
+        }
 
-                    return true;
-                }
+        try {
+            return Long.parseLong(budget.trim()) * multiplier;
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid value '{}' of the {} system property. The disk usage is not going to be limited.",
+                    System.getProperty(DISK_BUDGET_PROPERTY), DISK_BUDGET_PROPERTY);
+            return 0;
+        }
+    }
 
-                return false;
-            }
-        }));
+    private static int defaultEnvironmentBudget() {
+        String budget = System.getProperty(ENVIRONMENT_BUDGET_PROPERTY);
+        if (budget == null || budget.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            return Integer.parseInt(budget.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid value '{}' of the {} system property. The number of the open environments is not going to"
+                    + " be limited.", budget, ENVIRONMENT_BUDGET_PROPERTY);
+            return 0;
+        }
+    }
 
-        compileProcess.submit(task);
+    private static long defaultSharedEnvironmentIdleTimeoutMillis() {
+        String timeout = System.getProperty(SHARED_ENVIRONMENT_IDLE_TIMEOUT_PROPERTY);
+        if (timeout == null || timeout.isEmpty()) {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
 
         try {
-            initSemaphore.acquire();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new IllegalStateException("Thread interrupted");
+            return Long.parseLong(timeout.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid value '{}' of the {} system property. Using the default of one minute.", timeout,
+                    SHARED_ENVIRONMENT_IDLE_TIMEOUT_PROPERTY);
+            return TimeUnit.MINUTES.toMillis(1);
         }
+    }
 
-        compiledStuff.put(compiledJar.jarFile().getParentFile(), cleanUpSemaphore);
+    private static CleanUpMode defaultCleanUpMode() {
+        String mode = System.getProperty(CLEAN_UP_MODE_PROPERTY);
+        if (mode == null || mode.isEmpty()) {
+            return CleanUpMode.SYNCHRONOUS;
+        }
 
-        return ret;
+        try {
+            return CleanUpMode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Invalid value '{}' of the {} system property. Cleaning up synchronously.", mode,
+                    CLEAN_UP_MODE_PROPERTY);
+            return CleanUpMode.SYNCHRONOUS;
+        }
     }
 
-    private File getCompileRoot() throws IOException {
-        if (compileRoot == null) {
-            compileRoot = Files.createTempDirectory("revapi-testjars").toFile();
+    private static Path defaultCompileRootParent() {
+        String root = System.getProperty(COMPILE_ROOT_PROPERTY);
+        if (root == null || root.isEmpty()) {
+            return null;
         }
 
-        return compileRoot;
+        if (TMPFS_COMPILE_ROOT.equals(root)) {
+            Path shm = Paths.get("/dev/shm");
+            if (Files.isDirectory(shm) && Files.isWritable(shm)) {
+                return shm;
+            } else {
+                LOG.warn("/dev/shm is not available, falling back to the default temporary directory.");
+                return null;
+            }
+        }
+
+        return Paths.get(root);
     }
 
     public final class JarBuilder {
         private final DependencyResolver dependencyResolver;
-        private final List<File> dependencies = new ArrayList<>();
-        private Map<URI, JavaFileObject> sources = new HashMap<>();
-        private Map<URI, InputStream> resources = new HashMap<>();
+        private final List<Path> dependencies = new CopyOnWriteArrayList<>();
+        private final Map<URI, JavaFileObject> sources = new ConcurrentHashMap<>();
+        private final Map<URI, ResourceContent> resources = new ConcurrentHashMap<>();
 
         private JarBuilder(DependencyResolver dependencyResolver) {
             this.dependencyResolver = dependencyResolver;
@@ -313,7 +1281,14 @@ public final class CompilerManager {
                 URI resourceUri = URI.create(resource);
                 URI location = rootUri.resolve(resourceUri);
 
-                this.resources.put(resourceUri, getClass().getResourceAsStream(location.getPath()));
+                String resourcePath = location.getPath();
+                this.resources.put(resourceUri, () -> {
+                    InputStream in = CompilerManager.class.getResourceAsStream(resourcePath);
+                    if (in == null) {
+                        throw new NoSuchFileException(resourcePath);
+                    }
+                    return in;
+                });
             }
 
             return this;
@@ -324,13 +1299,18 @@ public final class CompilerManager {
          * files.
          */
         public JarBuilder fileSources(File root, File... sources) {
-            URI rootUri = root.toURI();
+            return fileSources(root.toPath(), Stream.of(sources).map(File::toPath).toArray(Path[]::new));
+        }
 
-            for (File source : sources) {
-                URI sourceUri = URI.create(source.getPath());
-                URI location = rootUri.resolve(sourceUri);
+        /**
+         * Similar to {@link #fileSources(File, File...)} but the files can be located on any file system.
+         */
+        public JarBuilder fileSources(Path root, Path... sources) {
+            for (Path source : sources) {
+                URI sourceUri = URI.create(toUriPath(source));
+                Path location = root.resolve(source.toString());
 
-                this.sources.put(sourceUri, new FileJavaFileObject(sourceUri, new File(location.getPath())));
+                this.sources.put(sourceUri, new FileJavaFileObject(sourceUri, location));
             }
 
             return this;
@@ -341,17 +1321,22 @@ public final class CompilerManager {
          * files.
          */
         public JarBuilder fileResources(File root, File... resources) {
-            URI rootUri = root.toURI();
+            return fileResources(root.toPath(), Stream.of(resources).map(File::toPath).toArray(Path[]::new));
+        }
 
-            for (File resource : resources) {
-                URI resourceUri = URI.create(resource.getPath());
-                URI location = rootUri.resolve(resourceUri);
+        /**
+         * Similar to {@link #fileResources(File, File...)} but the files can be located on any file system.
+         */
+        public JarBuilder fileResources(Path root, Path... resources) {
+            for (Path resource : resources) {
+                URI resourceUri = URI.create(toUriPath(resource));
+                Path location = root.resolve(resource.toString());
 
-                try {
-                    this.resources.put(resourceUri, new FileInputStream(location.getPath()));
-                } catch (FileNotFoundException e) {
-                    throw new IllegalArgumentException(e);
+                if (!Files.isReadable(location)) {
+                    throw new IllegalArgumentException(new NoSuchFileException(location.toString()));
                 }
+
+                this.resources.put(resourceUri, () -> Files.newInputStream(location));
             }
 
             return this;
@@ -360,7 +1345,7 @@ public final class CompilerManager {
         public JarBuilder dependencies(String identifier, String... moreIdentifiers) {
             for (int i = -1; i < moreIdentifiers.length; ++i) {
                 String id = i == -1 ? identifier : moreIdentifiers[i];
-                dependencies.addAll(dependencyResolver.resolve(id));
+                dependencyResolver.resolve(id).forEach(f -> dependencies.add(f.toPath()));
             }
             return this;
         }
@@ -376,6 +1361,18 @@ public final class CompilerManager {
          *            other dependencies
          */
         public JarBuilder dependencies(File jarFile, File... jarFiles) {
+            return dependencies(jarFile.toPath(), Stream.of(jarFiles).map(File::toPath).toArray(Path[]::new));
+        }
+
+        /**
+         * Similar to {@link #dependencies(File, File...)} but the files can be located on any file system.
+         *
+         * @param jarFile
+         *            the jar file of the dependency
+         * @param jarFiles
+         *            other dependencies
+         */
+        public JarBuilder dependencies(Path jarFile, Path... jarFiles) {
             dependencies.add(jarFile);
             dependencies.addAll(Arrays.asList(jarFiles));
             return this;
@@ -392,44 +1389,286 @@ public final class CompilerManager {
          *             on error
          */
         public CompiledJar build() throws IOException {
-            File dir = Files.createTempDirectory(getCompileRoot().toPath(), "jar").toFile();
+            return build(false);
+        }
+
+        /**
+         * Same as {@link #build()} followed by {@link CompiledJar#analyze()} but the compiled jar is analyzed using the
+         * same compilation that produced it, saving a second run of the compiler.
+         * <p>
+         * Because the analysis comes from the compilation of the sources, the
+         * {@link CompiledJar.Environment#processingEnvironment() processing environment} of the returned jar's
+         * environment can also be used to obtain the trees of the compiled sources (using
+         * {@code com.sun.source.util.Trees.instance(ProcessingEnvironment)}). Note that javac rewrites the trees during
+         * the code generation, so they no longer exactly correspond to the sources.
+         * <p>
+         * On Java 9 and later, the analysis during the compilation requires the JVM to be started with
+         * {@code --add-exports jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED}. Without it (or with a compiler not
+         * supporting the javac API), this method falls back to {@link #build()} followed by a separate analysis, which
+         * is logged at the debug level. The annotation processors found on the classpath of the compilation run the
+         * same way in both cases.
+         *
+         * @return an object to access the results of the compilation, already analyzed
+         *
+         * @throws IOException
+         *             on error
+         */
+        public CompiledJar buildAndAnalyze() throws IOException {
+            CompiledJar ret = build(true);
+            // make sure the environment exists even if the compiler was not able to analyze during the build
+            ret.analyze();
+            return ret;
+        }
+
+        private CompiledJar build(boolean analyze) throws IOException {
+            cleanUpLock.readLock().lock();
+            try {
+                Path dir = Files.createTempDirectory(getCompileRoot(), "jar");
+                compiledStuff.add(dir);
+
+                JarRecipe recipe = new JarRecipe(dir, new ArrayList<>(sources.values()), new HashMap<>(resources),
+                        new ArrayList<>(dependencies));
+
+                CompiledJar.Environment env = analyze ? new CompiledJar.Environment() : null;
+                if (!recipe.materialize(env)) {
+                    env = null;
+                }
+
+                synchronized (builtJars) {
+                    builtJars.put(recipe.jar, recipe);
+                }
+
+                enforceDiskBudget(recipe);
+
+                return new CompiledJar(recipe.jar, recipe.classes, recipe.dependencies, CompilerManager.this, env);
+            } finally {
+                cleanUpLock.readLock().unlock();
+            }
+        }
+
+        private String toUriPath(Path path) {
+            StringBuilder bld = new StringBuilder();
+            for (Path p : path) {
+                bld.append('/').append(p.toString());
+            }
+
+            return path.isAbsolute() || bld.length() == 0 ? bld.toString() : bld.substring(1);
+        }
+
+        private URI toUri(String path) {
+            if (path == null || path.isEmpty()) {
+                return URI.create("/");
+            } else {
+                return URI.create(path);
+            }
+        }
+    }
+
+    /**
+     * Everything needed to (re-)create the files of a jar built by the {@link JarBuilder}. This makes it possible to
+     * evict the files of the least recently used jars when over the {@link #diskBudget(long) disk budget} and recreate
+     * them once they are needed again.
+     * <p>
+     * The jars that are being used, e.g. as dependencies of a compilation or by a probe, are not evicted.
+     */
+    private final class JarRecipe {
+        final Path dir;
+        final Path classes;
+        final Path jar;
+        final List<JavaFileObject> sources;
+        final Map<URI, ResourceContent> resources;
+        final List<Path> dependencies;
+        // all the fields below are guarded by this
+        boolean materialized;
+        long size;
+        int users;
+        @Nullable
+        JarEntries entries;
+
+        JarRecipe(Path dir, List<JavaFileObject> sources, Map<URI, ResourceContent> resources,
+                List<Path> dependencies) {
+            this.dir = dir;
+            this.classes = dir.resolve("classes");
+            this.jar = dir.resolve("compiled.jar");
+            this.sources = sources;
+            this.resources = resources;
+            this.dependencies = dependencies;
+        }
+
+        synchronized boolean ensureMaterialized() throws IOException {
+            if (materialized) {
+                return false;
+            }
 
-            File compiledSourcesOutput = new File(dir, "classes");
-            if (!compiledSourcesOutput.mkdirs()) {
-                throw new IllegalStateException("Could not create output location for compiling test sources.");
+            LOG.debug("Rebuilding the previously evicted jar {}", jar);
+            materialize();
+            return true;
+        }
+
+        synchronized void acquire() throws IOException {
+            ensureMaterialized();
+            users++;
+        }
+
+        synchronized void release() {
+            users--;
+        }
+
+        synchronized boolean evict() {
+            if (!materialized || users > 0) {
+                return false;
+            }
+
+            entries = null;
+            cleanUpMode.delete(dir);
+            materialized = false;
+
+            synchronized (builtJars) {
+                diskUsage -= size;
+            }
+
+            return true;
+        }
+
+        synchronized void materialize() throws IOException {
+            materialize(null);
+        }
+
+        synchronized JarEntries entries() throws IOException {
+            if (entries == null) {
+                entries = JarEntries.of(jar);
             }
+            return entries;
+        }
 
-            List<JavaFileObject> sourceObjects = new ArrayList<>(sources.values());
+        synchronized void releaseEntries() {
+            entries = null;
+        }
 
-            List<String> options = new ArrayList<>(4);
-            options.add("-d");
-            options.add(compiledSourcesOutput.getAbsolutePath());
-            if (!dependencies.isEmpty()) {
-                options.add("-cp");
-                options.add(dependencies.stream().map(File::getAbsolutePath).collect(joining(File.pathSeparator)));
+        /**
+         * Compiles the sources and writes the jar.
+         *
+         * @param env
+         *            the environment to initialize from the compilation or null if the jar is not to be analyzed
+         *
+         * @return true if the environment was initialized. The compiler is then kept alive and this jar and its
+         *         dependencies are pinned until the environment is closed.
+         */
+        synchronized boolean materialize(@Nullable CompiledJar.Environment env) throws IOException {
+            Runnable releaseCompiler = compile(env);
+            try {
+                writeJar();
+                if (releaseCompiler != null) {
+                    env.archiveIndex = ArchiveIndex.of(jar);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (releaseCompiler != null) {
+                    releaseCompiler.run();
+                }
+                throw e;
             }
 
-            JavaCompiler.CompilationTask firstCompilation = compiler.getTask(null, null, null, options, null,
-                    sourceObjects);
-            if (!firstCompilation.call()) {
-                throw new IllegalStateException("Failed to compile the sources");
+            if (releaseCompiler == null) {
+                return false;
             }
 
-            for (Map.Entry<URI, InputStream> e : resources.entrySet()) {
-                File target = new File(compiledSourcesOutput, e.getKey().getPath());
-                File parent = target.getParentFile();
-                if (!parent.exists()) {
-                    if (!parent.mkdirs()) {
-                        throw new IllegalStateException(
-                                "Failed to create directory " + target.getParentFile().getAbsolutePath());
+            users++;
+            env.onClose(() -> {
+                releaseCompiler.run();
+                release();
+            });
+            environmentOpened(env);
+
+            return true;
+        }
+
+        /**
+         * @return null if the compiler has been discarded, otherwise the environment has been initialized and the
+         *         returned action releases the compiler
+         */
+        @Nullable
+        private Runnable compile(@Nullable CompiledJar.Environment env) throws IOException {
+            List<JarRecipe> deps = CompilerManager.this.acquire(dependencies);
+            PathJavaFileManager fileManager = null;
+            Closeable processorLoader = null;
+            boolean keepCompiler = false;
+            try {
+                Files.createDirectories(classes);
+
+                fileManager = createFileManager(classes, dependencies);
+
+                if (env != null) {
+                    // javac would tear down the compiler context once all the classes are generated. Let's keep
+                    // the marker annotation ungenerated so that the context stays alive.
+                    List<JavaFileObject> compiled = new ArrayList<>(sources);
+                    compiled.add(new MarkerAnnotationObject());
+
+                    ErrorTracker errors = new ErrorTracker();
+                    JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, errors, null, null,
+                            compiled);
+
+                    if (CompilerRuntime.canGenerateSelectively(task)) {
+                        // setting the processors disables their discovery, so the discovered ones need to be added,
+                        // too, for the jar to be the same as the one produced by build()
+                        processorLoader = setProcessors(task, fileManager, new ProbeProcessor(env, null));
+
+                        List<Element> toGenerate = new ArrayList<>();
+                        for (Element e : CompilerRuntime.analyze(task)) {
+                            if (!(e instanceof TypeElement && ((TypeElement) e).getQualifiedName()
+                                    .contentEquals(MarkerAnnotationObject.CLASS_NAME))) {
+                                toGenerate.add(e);
+                            }
+                        }
+
+                        if (!errors.found) {
+                            CompilerRuntime.generate(task, toGenerate);
+                        }
+
+                        if (errors.found) {
+                            throw new IllegalStateException("Failed to compile the sources");
+                        }
+
+                        keepCompiler = true;
+                        PathJavaFileManager fm = fileManager;
+                        Closeable pl = processorLoader;
+                        return () -> {
+                            closeProcessorsQuietly(pl, jar);
+                            closeQuietly(fm, jar);
+                            CompilerManager.release(deps);
+                        };
+                    }
+                }
+
+                if (!compiler.getTask(null, fileManager, null, null, null, sources).call()) {
+                    throw new IllegalStateException("Failed to compile the sources");
+                }
+
+                return null;
+            } finally {
+                if (!keepCompiler) {
+                    if (processorLoader != null) {
+                        closeProcessorsQuietly(processorLoader, jar);
+                    }
+                    if (fileManager != null) {
+                        closeQuietly(fileManager, jar);
                     }
+                    CompilerManager.release(deps);
+                }
+            }
+        }
+
+        // must be called with the monitor held
+        private void writeJar() throws IOException {
+            for (Map.Entry<URI, ResourceContent> e : resources.entrySet()) {
+                Path target = classes.resolve(e.getKey().getPath());
+                Files.createDirectories(target.getParent());
+                try (InputStream in = e.getValue().open()) {
+                    Files.copy(in, target);
                 }
-                Files.copy(e.getValue(), target.toPath());
             }
 
-            File compiledJar = new File(dir, "compiled.jar");
-            try (JarOutputStream out = new JarOutputStream(new FileOutputStream(compiledJar))) {
-                Path root = compiledSourcesOutput.toPath();
+            try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+                Path root = classes;
                 HashSet<String> added = new HashSet<>();
 
                 // The JAR file spec assumes that the MANIFEST.MF is the first or the second entry in the jar file.
@@ -494,21 +1733,111 @@ public final class CompilerManager {
                 });
             }
 
-            compiledStuff.put(dir, null);
+            size = sizeOf(dir);
+            materialized = true;
 
-            return new CompiledJar(compiledJar, compiledSourcesOutput, dependencies.toArray(new File[0]),
-                    CompilerManager.this);
+            synchronized (builtJars) {
+                diskUsage += size;
+            }
         }
+    }
 
-        private URI toUri(String path) {
-            if (path == null || path.isEmpty()) {
-                return URI.create("/");
-            } else {
-                return URI.create(path);
+    /**
+     * Captures the processing environment of the probe once the annotation processing is over.
+     */
+    private static final class ProbeProcessor extends AbstractProcessor {
+        private final CompiledJar.Environment env;
+        private final Runnable whenOver;
+
+        /**
+         * @param env
+         *            the environment to initialize
+         * @param whenOver
+         *            called in the compiler thread after the environment is initialized, if not null
+         */
+        ProbeProcessor(CompiledJar.Environment env, @Nullable Runnable whenOver) {
+            this.env = env;
+            this.whenOver = whenOver;
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latest();
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            // the processor must also be invoked for sources without any annotations
+            return singleton("*");
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (roundEnv.processingOver()) {
+                env.elements = processingEnv.getElementUtils();
+                env.types = processingEnv.getTypeUtils();
+                env.processingEnvironment = processingEnv;
+
+                if (whenOver != null) {
+                    whenOver.run();
+                }
+
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Prints the diagnostics the same way the compiler would without a diagnostic listener and remembers whether there
+     * were any errors.
+     */
+    private static final class ErrorTracker implements DiagnosticListener<JavaFileObject> {
+        volatile boolean found;
+
+        @Override
+        public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                found = true;
             }
+            System.err.println(diagnostic);
         }
     }
 
+    @FunctionalInterface
+    private interface ResourceContent {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * The ways the {@link #cleanUp()} method can remove the files.
+     */
+    public enum CleanUpMode {
+        /**
+         * The files are deleted before the {@link #cleanUp()} method returns.
+         */
+        SYNCHRONOUS {
+            @Override
+            void delete(Path path) {
+                Trash.deleteRecursively(path);
+            }
+        },
+
+        /**
+         * The directories are atomically renamed and then deleted by a background thread pool. The pool is drained
+         * before the JVM exits.
+         */
+        BACKGROUND {
+            @Override
+            void delete(Path path) {
+                Trash.discard(path);
+            }
+        };
+
+        abstract void delete(Path path);
+    }
+
     private static final class NoopDependencyResolver implements DependencyResolver {
 
         @Override
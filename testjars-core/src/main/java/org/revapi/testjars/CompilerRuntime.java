@@ -0,0 +1,338 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.lang.model.element.Element;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The process-wide resources shared by all the {@link CompilerManager}s - the compiler, the thread pools running the
+ * probes and the clean up tasks and the shared compile root used by the {@link CompilerManager#shared() shared}
+ * compiler managers.
+ * <p>
+ * The shared compile root is reference-counted. It is created when first needed and deleted once the last compiler
+ * manager using it is cleaned up.
+ */
+final class CompilerRuntime {
+    private static final Logger LOG = LoggerFactory.getLogger(CompilerRuntime.class);
+
+    static final String COMPILE_ROOT_PREFIX = "revapi-testjars";
+
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+
+    private static final String JAVAC_TASK_CLASS_NAME = "com.sun.source.util.JavacTask";
+
+    /**
+     * The {@code JavacTask} superclass of the given compilation task class, if the task is a javac task. The class is
+     * not accessible at compile time when compiling for Java 8, so it is looked up reflectively.
+     */
+    private static final ClassValue<Optional<Class<?>>> JAVAC_TASK_CLASS = new ClassValue<Optional<Class<?>>>() {
+        @Override
+        protected Optional<Class<?>> computeValue(Class<?> type) {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                if (JAVAC_TASK_CLASS_NAME.equals(c.getName())) {
+                    return Optional.of(c);
+                }
+            }
+
+            return Optional.empty();
+        }
+    };
+
+    /**
+     * The {@code JavacTaskImpl.generate(Iterable)} method for the given compilation task class, if it is available and
+     * accessible. Its package is not exported from the {@code jdk.compiler} module, so on Java 9 and later it can only
+     * be used if the JVM is started with {@code --add-exports jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED}.
+     */
+    private static final ClassValue<Optional<Method>> SELECTIVE_GENERATE = new ClassValue<Optional<Method>>() {
+        @Override
+        protected Optional<Method> computeValue(Class<?> type) {
+            if (!JAVAC_TASK_CLASS.get(type).isPresent()) {
+                return Optional.empty();
+            }
+
+            try {
+                Method generate = type.getMethod("generate", Iterable.class);
+                if (isExportedToUs(generate.getDeclaringClass())) {
+                    return Optional.of(generate);
+                }
+
+                LOG.debug("The package of " + generate.getDeclaringClass() + " is not exported to testjars."
+                        + " CompilerManager.JarBuilder.buildAndAnalyze() is going to compile and analyze the jars"
+                        + " separately. Start the JVM with --add-exports"
+                        + " jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED to analyze them during the compilation.");
+                return Optional.empty();
+            } catch (NoSuchMethodException e) {
+                LOG.debug("The javac of " + type + " doesn't support selective generation."
+                        + " CompilerManager.JarBuilder.buildAndAnalyze() is going to compile and analyze the jars"
+                        + " separately.");
+                return Optional.empty();
+            }
+        }
+    };
+
+    private static final ExecutorService EXECUTOR;
+
+    private static final ExecutorService PARKING_EXECUTOR;
+
+    private static final ScheduledExecutorService SCHEDULER;
+
+    private static final Object SHARED_ROOT_GUARD = new Object();
+
+    // guarded by SHARED_ROOT_GUARD
+    private static Path sharedRoot;
+    private static Closeable sharedRootLock;
+    private static int sharedRootUsers;
+
+    static {
+        AtomicInteger threadCount = new AtomicInteger();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "revapi-testjars-compiler-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        EXECUTOR = executor;
+
+        // If the compiler doesn't support the JavacTask API, the probes park their threads until the clean up, so the
+        // number of threads can't be bounded without risking a deadlock. The idle threads are reclaimed quickly though.
+        AtomicInteger parkedThreadCount = new AtomicInteger();
+        PARKING_EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "revapi-testjars-parked-compiler-" + parkedThreadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "revapi-testjars-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        SCHEDULER = scheduler;
+    }
+
+    private CompilerRuntime() {
+        throw new AssertionError();
+    }
+
+    static JavaCompiler compiler() {
+        return COMPILER;
+    }
+
+    /**
+     * @return the thread pool for the compilations and analyses, bounded by the number of processors
+     */
+    static ExecutorService executor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * @return the unbounded thread pool for the compilations that park their threads until their environments are
+     *         closed, which only happens with the compilers not supporting the javac API, and for the tasks that must
+     *         start right away instead of waiting behind the tasks queued in the {@link #executor()}
+     */
+    static ExecutorService parkingExecutor() {
+        return PARKING_EXECUTOR;
+    }
+
+    /**
+     * @return the single-threaded scheduler for the delayed clean up tasks. The tasks must be short, anything longer
+     *         should be handed over to the {@link #executor()}.
+     */
+    static ScheduledExecutorService scheduler() {
+        return SCHEDULER;
+    }
+
+    /**
+     * @return true if the provided task supports {@link #analyze(JavaCompiler.CompilationTask)}
+     */
+    static boolean canAnalyze(JavaCompiler.CompilationTask task) {
+        return JAVAC_TASK_CLASS.get(task.getClass()).isPresent();
+    }
+
+    /**
+     * Parses, enters and attributes the sources of the provided task, running the annotation processors along the way,
+     * but doesn't generate any class files. The compiler context stays alive after this method returns so the elements
+     * and types obtained during the annotation processing can still be used.
+     *
+     * @return the top-level elements of the analyzed sources
+     *
+     * @throws UnsupportedOperationException
+     *             if the task {@link #canAnalyze(JavaCompiler.CompilationTask) cannot be analyzed}
+     */
+    static Iterable<? extends Element> analyze(JavaCompiler.CompilationTask task) throws IOException {
+        Class<?> javacTask = JAVAC_TASK_CLASS.get(task.getClass())
+                .orElseThrow(() -> new UnsupportedOperationException("Not a javac task: " + task.getClass()));
+
+        Method analyze;
+        try {
+            analyze = javacTask.getMethod("analyze");
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Unsupported version of javac.", e);
+        }
+
+        @SuppressWarnings("unchecked")
+        Iterable<? extends Element> ret = (Iterable<? extends Element>) invoke(analyze, task);
+        return ret;
+    }
+
+    /**
+     * @return true if the provided task supports {@link #generate(JavaCompiler.CompilationTask, Iterable)}
+     */
+    static boolean canGenerateSelectively(JavaCompiler.CompilationTask task) {
+        return SELECTIVE_GENERATE.get(task.getClass()).isPresent();
+    }
+
+    /**
+     * Generates the class files of the provided top-level elements of an {@link #analyze(JavaCompiler.CompilationTask)
+     * analyzed} task.
+     * <p>
+     * Note that javac tears down the compiler context once all the classes of the task are generated, after which the
+     * elements and types obtained from it can no longer be used. To keep the context alive, at least one of the
+     * analyzed elements must not be generated.
+     *
+     * @throws UnsupportedOperationException
+     *             if the task {@link #canGenerateSelectively(JavaCompiler.CompilationTask) doesn't support} this
+     */
+    static void generate(JavaCompiler.CompilationTask task, Iterable<? extends Element> elements) throws IOException {
+        Method generate = SELECTIVE_GENERATE.get(task.getClass()).orElseThrow(
+                () -> new UnsupportedOperationException("Selective generation not supported by " + task.getClass()));
+        invoke(generate, task, elements);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to invoke " + method, e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IllegalStateException("Failed to compile the sources.", cause);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the package of the provided class is exported to the module of this class. Always true on Java 8
+     * which has no modules.
+     */
+    private static boolean isExportedToUs(Class<?> type) {
+        Method getModule;
+        try {
+            getModule = Class.class.getMethod("getModule");
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+
+        try {
+            Object theirs = getModule.invoke(type);
+            Object ours = getModule.invoke(CompilerRuntime.class);
+            Method isExported = theirs.getClass().getMethod("isExported", String.class, getModule.getReturnType());
+            return (Boolean) isExported.invoke(theirs, type.getPackage().getName(), ours);
+        } catch (ReflectiveOperationException e) {
+            LOG.debug("Failed to determine whether " + type + " is accessible.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Creates a new compile root in the provided directory and removes any stale compile roots from it.
+     *
+     * @param parent
+     *            the directory to create the compile root in or null for the default temporary directory
+     */
+    static Path createCompileRoot(@Nullable Path parent) throws IOException {
+        Path root = parent == null ? Files.createTempDirectory(COMPILE_ROOT_PREFIX)
+                : Files.createTempDirectory(Files.createDirectories(parent), COMPILE_ROOT_PREFIX);
+        Trash.sweepStaleRoots(root.getParent(), COMPILE_ROOT_PREFIX);
+        return root;
+    }
+
+    /**
+     * Returns the shared compile root, creating it if needed. Each call must be paired with a call to
+     * {@link #releaseSharedRoot(CompilerManager.CleanUpMode)}.
+     *
+     * @param parent
+     *            the directory to create the shared root in if it doesn't exist yet
+     */
+    static Path acquireSharedRoot(@Nullable Path parent) throws IOException {
+        synchronized (SHARED_ROOT_GUARD) {
+            if (sharedRoot == null) {
+                sharedRoot = createCompileRoot(parent);
+                sharedRootLock = Trash.lock(sharedRoot);
+            }
+
+            sharedRootUsers++;
+            return sharedRoot;
+        }
+    }
+
+    /**
+     * Releases the shared compile root. If this was the last user, the root is deleted using the provided mode.
+     */
+    static void releaseSharedRoot(CompilerManager.CleanUpMode cleanUpMode) {
+        synchronized (SHARED_ROOT_GUARD) {
+            if (--sharedRootUsers > 0) {
+                return;
+            }
+
+            if (sharedRootLock != null) {
+                try {
+                    sharedRootLock.close();
+                } catch (IOException e) {
+                    LOG.debug("Failed to release the lock on the compile root " + sharedRoot, e);
+                }
+            }
+
+            cleanUpMode.delete(sharedRoot);
+            sharedRoot = null;
+            sharedRootLock = null;
+        }
+    }
+}
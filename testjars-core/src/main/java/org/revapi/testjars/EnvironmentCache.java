@@ -0,0 +1,265 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JVM-wide cache of the environments analyzing the external jars. The environments are identified by the contents of
+ * the analyzed jar and its classpath.
+ * <p>
+ * The callers get their own views of the shared environments. Closing a view doesn't close the shared environment until
+ * all the views of it are closed and the idle timeout passes without the environment being used again.
+ */
+final class EnvironmentCache {
+    private static final Logger LOG = LoggerFactory.getLogger(EnvironmentCache.class);
+
+    // guarded by itself
+    private static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    private static final int MAX_FILE_DIGESTS = 1024;
+
+    /**
+     * The digests of the most recently used files, keyed by their paths, so that the contents of the same file are only
+     * read once. A digest is only used while the size and the last modification time of the file stay the same.
+     */
+    // guarded by itself
+    private static final Map<URI, FileDigest> FILE_DIGESTS = new LinkedHashMap<URI, FileDigest>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<URI, FileDigest> eldest) {
+            return size() > MAX_FILE_DIGESTS;
+        }
+    };
+
+    private EnvironmentCache() {
+        throw new AssertionError();
+    }
+
+    @FunctionalInterface
+    interface EnvironmentFactory {
+        CompiledJar.Environment create() throws IOException;
+    }
+
+    /**
+     * Returns a new view of the shared environment analyzing the provided classpath, creating the shared environment
+     * using the provided factory if needed.
+     *
+     * @param classpath
+     *            the analyzed jar followed by its dependencies
+     * @param idleTimeoutMillis
+     *            how long to keep the shared environment after the last view of it is closed
+     * @param factory
+     *            the factory to create the shared environment with
+     */
+    static CompiledJar.Environment acquire(List<Path> classpath, long idleTimeoutMillis, EnvironmentFactory factory)
+            throws IOException {
+        String key = fingerprint(classpath);
+
+        Entry entry;
+        synchronized (ENTRIES) {
+            entry = ENTRIES.computeIfAbsent(key, Entry::new);
+            entry.users++;
+            if (entry.pendingTeardown != null) {
+                entry.pendingTeardown.cancel(false);
+                entry.pendingTeardown = null;
+            }
+        }
+
+        CompiledJar.Environment shared;
+        try {
+            shared = entry.get(factory);
+        } catch (IOException | RuntimeException e) {
+            release(entry, 0);
+            throw e;
+        }
+
+        CompiledJar.Environment view = new CompiledJar.Environment();
+        view.elements = shared.elements;
+        view.types = shared.types;
+        view.processingEnvironment = shared.processingEnvironment;
+        view.archiveIndex = shared.archiveIndex;
+        view.confinedTo = shared;
+        view.onClose(() -> release(entry, idleTimeoutMillis));
+
+        return view;
+    }
+
+    private static void release(Entry entry, long idleTimeoutMillis) {
+        synchronized (ENTRIES) {
+            if (--entry.users > 0) {
+                return;
+            }
+
+            if (idleTimeoutMillis > 0) {
+                // closing the compiler can take a while, which mustn't block the scheduler
+                entry.pendingTeardown = CompilerRuntime.scheduler().schedule(
+                        () -> CompilerRuntime.executor().execute(() -> tearDown(entry)), idleTimeoutMillis,
+                        TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+
+        tearDown(entry);
+    }
+
+    private static void tearDown(Entry entry) {
+        synchronized (ENTRIES) {
+            if (entry.users > 0 || ENTRIES.get(entry.key) != entry) {
+                return;
+            }
+
+            ENTRIES.remove(entry.key);
+            entry.pendingTeardown = null;
+        }
+
+        LOG.debug("Discarding the shared environment {}", entry.key);
+        entry.close();
+    }
+
+    /**
+     * @return the number of shared environments currently alive
+     */
+    static int size() {
+        synchronized (ENTRIES) {
+            return ENTRIES.size();
+        }
+    }
+
+    private static String fingerprint(List<Path> classpath) throws IOException {
+        MessageDigest digest = newDigest();
+        for (Path p : classpath) {
+            digest.update(digestOf(p));
+        }
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+
+    private static byte[] digestOf(Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attrs.isDirectory()) {
+            MessageDigest digest = newDigest();
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> walk = Files.walk(path)) {
+                walk.filter(Files::isRegularFile).sorted().forEach(files::add);
+            }
+
+            for (Path file : files) {
+                digest.update(path.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(digestOf(file));
+            }
+
+            return digest.digest();
+        }
+
+        URI fileKey = path.toUri();
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        FileDigest cached;
+        synchronized (FILE_DIGESTS) {
+            cached = FILE_DIGESTS.get(fileKey);
+        }
+
+        byte[] ret;
+        if (cached != null && cached.size == size && cached.lastModified == lastModified) {
+            ret = cached.digest;
+        } else {
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[8192];
+            try (InputStream in = Files.newInputStream(path)) {
+                int cnt;
+                while ((cnt = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, cnt);
+                }
+            }
+
+            ret = digest.digest();
+            synchronized (FILE_DIGESTS) {
+                FILE_DIGESTS.put(fileKey, new FileDigest(size, lastModified, ret));
+            }
+        }
+
+        return ret;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available.", e);
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        // guarded by ENTRIES
+        int users;
+        ScheduledFuture<?> pendingTeardown;
+        // guarded by this
+        private CompiledJar.Environment environment;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        synchronized CompiledJar.Environment get(EnvironmentFactory factory) throws IOException {
+            if (environment == null || environment.isClosed()) {
+                environment = factory.create();
+            }
+
+            return environment;
+        }
+
+        synchronized void close() {
+            if (environment != null) {
+                environment.close();
+                environment = null;
+            }
+        }
+    }
+
+    private static final class FileDigest {
+        final long size;
+        final long lastModified;
+        final byte[] digest;
+
+        FileDigest(long size, long lastModified, byte[] digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+}
@@ -16,27 +16,27 @@
  */
 package org.revapi.testjars;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import javax.tools.SimpleJavaFileObject;
 
 final class FileJavaFileObject extends SimpleJavaFileObject {
-    private final File file;
+    private final Path file;
 
-    public FileJavaFileObject(URI uri, File file) {
+    public FileJavaFileObject(URI uri, Path file) {
         super(uri, Kind.SOURCE);
         this.file = file;
     }
 
     @Override
     public InputStream openInputStream() throws IOException {
-        return new FileInputStream(file);
+        return Files.newInputStream(file);
     }
 
     @Override
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+import javax.annotation.Nullable;
+
+/**
+ * The entries of a jar file, read once from its central directory. The jar file is memory-mapped if its file system
+ * supports it, otherwise it is read into memory. Either way, the lookups of the entries and the access to their
+ * contents don't touch the file system again.
+ * <p>
+ * The ZIP64 format is not supported, which limits the size of the jar to 4 GB and the number of the entries to 65535.
+ * <p>
+ * The instances are immutable and thread-safe.
+ */
+public final class JarEntries {
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private final ByteBuffer jar;
+    private final Map<String, Integer> indices;
+    private final String[] names;
+    private final int[] methods;
+    private final int[] crcs;
+    private final int[] compressedSizes;
+    private final int[] sizes;
+    private final int[] offsets;
+
+    private JarEntries(ByteBuffer jar, int count) {
+        this.jar = jar;
+        this.indices = new LinkedHashMap<>(count * 4 / 3 + 1);
+        this.names = new String[count];
+        this.methods = new int[count];
+        this.crcs = new int[count];
+        this.compressedSizes = new int[count];
+        this.sizes = new int[count];
+        this.offsets = new int[count];
+    }
+
+    static JarEntries of(Path jar) throws IOException {
+        ByteBuffer data;
+        try (SeekableByteChannel channel = Files.newByteChannel(jar)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The jar file " + jar + " is too large.");
+            }
+
+            data = channel instanceof FileChannel ? map((FileChannel) channel, size) : null;
+            if (data == null) {
+                data = ByteBuffer.allocate((int) size);
+                while (data.hasRemaining() && channel.read(data) >= 0) {
+                    // keep reading
+                }
+                data.flip();
+            }
+        }
+
+        data.order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            return parse(data);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("The jar file " + jar + " is corrupted.", e);
+        }
+    }
+
+    @Nullable
+    private static ByteBuffer map(FileChannel channel, long size) throws IOException {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static JarEntries parse(ByteBuffer data) throws IOException {
+        int end = findEndOfCentralDirectory(data);
+        int count = data.getShort(end + 10) & 0xFFFF;
+        long directoryOffset = data.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new IOException("ZIP64 jar files are not supported.");
+        }
+
+        JarEntries ret = new JarEntries(data, count);
+
+        int pos = (int) directoryOffset;
+        for (int i = 0; i < count; ++i) {
+            if (data.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory header.");
+            }
+
+            int nameLength = data.getShort(pos + 28) & 0xFFFF;
+            int extraLength = data.getShort(pos + 30) & 0xFFFF;
+            int commentLength = data.getShort(pos + 32) & 0xFFFF;
+
+            ret.methods[i] = data.getShort(pos + 10) & 0xFFFF;
+            ret.crcs[i] = data.getInt(pos + 16);
+            ret.compressedSizes[i] = data.getInt(pos + 20);
+            ret.sizes[i] = data.getInt(pos + 24);
+            ret.offsets[i] = data.getInt(pos + 42);
+
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameView = data.duplicate();
+            nameView.position(pos + CENTRAL_HEADER_SIZE);
+            nameView.get(name);
+            ret.names[i] = new String(name, StandardCharsets.UTF_8);
+            ret.indices.put(ret.names[i], i);
+
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return ret;
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer data) throws IOException {
+        int last = data.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+        int first = Math.max(0, last - MAX_COMMENT_SIZE);
+        for (int pos = last; pos >= first; --pos) {
+            if (data.getInt(pos) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                return pos;
+            }
+        }
+
+        throw new IOException("Not a jar file.");
+    }
+
+    /**
+     * @return the number of the entries
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return the names of the entries in the order they appear in the jar
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(indices.keySet());
+    }
+
+    /**
+     * @return the entries in the order they appear in the jar
+     */
+    public Stream<Entry> entries() {
+        return IntStream.range(0, names.length).mapToObj(Entry::new);
+    }
+
+    /**
+     * @param name
+     *            the name of the entry, e.g. {@code pkg/MyClass.class}
+     *
+     * @return the entry or null if there is no such entry in the jar
+     */
+    @Nullable
+    public Entry entry(String name) {
+        Integer idx = indices.get(name);
+        return idx == null ? null : new Entry(idx);
+    }
+
+    /**
+     * A view of an entry of the jar.
+     */
+    public final class Entry {
+        private final int index;
+
+        private Entry(int index) {
+            this.index = index;
+        }
+
+        public String name() {
+            return names[index];
+        }
+
+        public boolean isDirectory() {
+            return names[index].endsWith("/");
+        }
+
+        /**
+         * @return the uncompressed size of the entry
+         */
+        public long size() {
+            return sizes[index] & 0xFFFFFFFFL;
+        }
+
+        public long compressedSize() {
+            return compressedSizes[index] & 0xFFFFFFFFL;
+        }
+
+        /**
+         * @return the CRC-32 checksum of the uncompressed data
+         */
+        public long crc() {
+            return crcs[index] & 0xFFFFFFFFL;
+        }
+
+        /**
+         * @return the offset of the local header of the entry in the jar file
+         */
+        public long offset() {
+            return offsets[index] & 0xFFFFFFFFL;
+        }
+
+        /**
+         * @return true if the entry is stored uncompressed
+         */
+        public boolean isStored() {
+            return methods[index] == ZipEntry.STORED;
+        }
+
+        /**
+         * Returns the contents of a {@link #isStored() stored} entry without copying it.
+         *
+         * @return a read-only view of the contents of the entry or null if the entry is compressed
+         */
+        @Nullable
+        public ByteBuffer storedContents() {
+            return isStored() ? data() : null;
+        }
+
+        /**
+         * @return a stream of the uncompressed contents of the entry
+         */
+        public InputStream open() throws IOException {
+            InputStream raw = new ByteBufferInputStream(data());
+            if (isStored()) {
+                return raw;
+            } else if (methods[index] == ZipEntry.DEFLATED) {
+                return new InflaterInputStream(raw, new Inflater(true)) {
+                    private boolean eof;
+
+                    @Override
+                    protected void fill() throws IOException {
+                        if (eof) {
+                            throw new EOFException("Unexpected end of the compressed data of " + name());
+                        }
+
+                        len = in.read(buf, 0, buf.length);
+                        if (len < 0) {
+                            // the inflater in the nowrap mode needs an extra dummy byte at the end of the input
+                            buf[0] = 0;
+                            len = 1;
+                            eof = true;
+                        }
+                        inf.setInput(buf, 0, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            } else {
+                throw new IOException("Unsupported compression method " + methods[index] + " of " + name());
+            }
+        }
+
+        private ByteBuffer data() {
+            int header = offsets[index];
+            if (jar.getInt(header) != LOCAL_HEADER_SIGNATURE) {
+                throw new IllegalStateException("Invalid local header of " + name());
+            }
+
+            int start = header + LOCAL_HEADER_SIZE + (jar.getShort(header + 26) & 0xFFFF)
+                    + (jar.getShort(header + 28) & 0xFFFF);
+
+            ByteBuffer ret = jar.asReadOnlyBuffer();
+            ret.position(start);
+            ret.limit(start + compressedSizes[index]);
+            return ret.slice();
+        }
+
+        @Override
+        public String toString() {
+            return "Entry[" + name() + "]";
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int cnt = Math.min(len, buffer.remaining());
+            buffer.get(b, off, cnt);
+            return cnt;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
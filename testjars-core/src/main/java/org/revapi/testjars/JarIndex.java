@@ -0,0 +1,490 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * A structural index of the classes in a jar file, read directly from the class files without starting the compiler. It
+ * gives access to the names of the classes, their super types, modifiers and the signatures of their members. Use
+ * {@link CompiledJar#analyze()} if you need the full fidelity of the {@code javax.lang.model}.
+ * <p>
+ * The class and type names are the binary names, e.g. {@code java.util.Map$Entry}, the member signatures are the
+ * descriptors as defined by the JVM specification, e.g. {@code (Ljava/lang/String;)V}. The access flags are the raw
+ * flags from the class file and can be interpreted using the {@link java.lang.reflect.Modifier} class.
+ * <p>
+ * The index is immutable and thread-safe.
+ */
+public final class JarIndex {
+    private static final String CLASS_SUFFIX = ".class";
+
+    // the layout of the records in the classes array
+    private static final int CLASS_NAME = 0;
+    private static final int CLASS_SUPER_NAME = 1;
+    private static final int CLASS_ACCESS = 2;
+    private static final int CLASS_INTERFACES_START = 3;
+    private static final int CLASS_INTERFACES_END = 4;
+    private static final int CLASS_FIELDS_START = 5;
+    private static final int CLASS_METHODS_START = 6;
+    private static final int CLASS_METHODS_END = 7;
+    private static final int CLASS_RECORD_SIZE = 8;
+
+    // the layout of the records in the members array
+    private static final int MEMBER_NAME = 0;
+    private static final int MEMBER_DESCRIPTOR = 1;
+    private static final int MEMBER_ACCESS = 2;
+    private static final int MEMBER_RECORD_SIZE = 3;
+
+    private static final int NO_STRING = -1;
+
+    private final String[] strings;
+    private final int[] classes;
+    private final int[] interfaces;
+    private final int[] members;
+    private final Map<String, Integer> classIndices;
+
+    private JarIndex(String[] strings, int[] classes, int[] interfaces, int[] members,
+            Map<String, Integer> classIndices) {
+        this.strings = strings;
+        this.classes = classes;
+        this.interfaces = interfaces;
+        this.members = members;
+        this.classIndices = classIndices;
+    }
+
+    static JarIndex of(Path jar) throws IOException {
+        Builder bld = new Builder();
+
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(jar))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(CLASS_SUFFIX) || name.startsWith("META-INF/")
+                        || name.endsWith("module-info" + CLASS_SUFFIX)) {
+                    continue;
+                }
+
+                bld.parse(in);
+            }
+        }
+
+        return bld.build();
+    }
+
+    /**
+     * @return the binary names of all the classes in the jar
+     */
+    public Set<String> classNames() {
+        return classIndices.keySet();
+    }
+
+    /**
+     * @return all the classes in the jar
+     */
+    public Stream<ClassInfo> classes() {
+        return IntStream.range(0, classIndices.size()).mapToObj(ClassInfo::new);
+    }
+
+    /**
+     * @param binaryName
+     *            the binary name of the class
+     *
+     * @return the information about the class or null if there is no such class in the jar
+     */
+    @Nullable
+    public ClassInfo classInfo(String binaryName) {
+        Integer idx = classIndices.get(binaryName);
+        return idx == null ? null : new ClassInfo(idx);
+    }
+
+    private String string(int idx) {
+        return idx == NO_STRING ? null : strings[idx];
+    }
+
+    /**
+     * A view of a class in the index.
+     */
+    public final class ClassInfo {
+        private final int offset;
+
+        private ClassInfo(int index) {
+            this.offset = index * CLASS_RECORD_SIZE;
+        }
+
+        public String name() {
+            return string(classes[offset + CLASS_NAME]);
+        }
+
+        /**
+         * @return the binary name of the super class or null if there is none (i.e. for {@code java.lang.Object} and
+         *         {@code module-info})
+         */
+        @Nullable
+        public String superClassName() {
+            return string(classes[offset + CLASS_SUPER_NAME]);
+        }
+
+        /**
+         * @return the binary names of the directly implemented interfaces
+         */
+        public List<String> interfaceNames() {
+            int start = classes[offset + CLASS_INTERFACES_START];
+            int end = classes[offset + CLASS_INTERFACES_END];
+            return new AbstractList<String>() {
+                @Override
+                public String get(int index) {
+                    if (index < 0 || index >= end - start) {
+                        throw new IndexOutOfBoundsException(Integer.toString(index));
+                    }
+                    return string(interfaces[start + index]);
+                }
+
+                @Override
+                public int size() {
+                    return end - start;
+                }
+            };
+        }
+
+        public int accessFlags() {
+            return classes[offset + CLASS_ACCESS];
+        }
+
+        /**
+         * @return the fields declared by this class
+         */
+        public List<MemberInfo> fields() {
+            return members(classes[offset + CLASS_FIELDS_START], classes[offset + CLASS_METHODS_START]);
+        }
+
+        /**
+         * @return the methods, including the constructors and static initializers, declared by this class
+         */
+        public List<MemberInfo> methods() {
+            return members(classes[offset + CLASS_METHODS_START], classes[offset + CLASS_METHODS_END]);
+        }
+
+        private List<MemberInfo> members(int start, int end) {
+            return new AbstractList<MemberInfo>() {
+                @Override
+                public MemberInfo get(int index) {
+                    if (index < 0 || index >= end - start) {
+                        throw new IndexOutOfBoundsException(Integer.toString(index));
+                    }
+                    return new MemberInfo(start + index);
+                }
+
+                @Override
+                public int size() {
+                    return end - start;
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "ClassInfo[" + name() + "]";
+        }
+    }
+
+    /**
+     * A view of a field or a method in the index.
+     */
+    public final class MemberInfo {
+        private final int offset;
+
+        private MemberInfo(int index) {
+            this.offset = index * MEMBER_RECORD_SIZE;
+        }
+
+        public String name() {
+            return string(members[offset + MEMBER_NAME]);
+        }
+
+        public String descriptor() {
+            return string(members[offset + MEMBER_DESCRIPTOR]);
+        }
+
+        public int accessFlags() {
+            return members[offset + MEMBER_ACCESS];
+        }
+
+        @Override
+        public String toString() {
+            return "MemberInfo[" + name() + descriptor() + "]";
+        }
+    }
+
+    /**
+     * Tells whether the class file describes a nested class, i.e. a member, local or anonymous class, using its
+     * {@code InnerClasses} attribute. Unlike the name of the class file, this tells the top-level classes with
+     * {@code $} in their names apart from the nested ones.
+     */
+    static boolean isNested(InputStream classFile) throws IOException {
+        DataInputStream in = new DataInputStream(classFile);
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("Not a class file.");
+        }
+
+        // minor and major version
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        int cpCount = in.readUnsignedShort();
+        String[] utf8s = new String[cpCount];
+        int[] classNameRefs = new int[cpCount];
+        readConstantPool(in, utf8s, classNameRefs);
+
+        // access flags
+        in.readUnsignedShort();
+        String thisClass = utf8s[classNameRefs[in.readUnsignedShort()]];
+        // super class
+        in.readUnsignedShort();
+        skip(in, 2L * in.readUnsignedShort());
+
+        // fields and methods
+        for (int i = 0; i < 2; ++i) {
+            int cnt = in.readUnsignedShort();
+            for (int j = 0; j < cnt; ++j) {
+                // access flags, name and descriptor
+                skip(in, 6);
+                skipAttributes(in);
+            }
+        }
+
+        int cnt = in.readUnsignedShort();
+        for (int i = 0; i < cnt; ++i) {
+            String name = utf8s[in.readUnsignedShort()];
+            long length = in.readInt() & 0xFFFFFFFFL;
+            if (!"InnerClasses".equals(name)) {
+                skip(in, length);
+                continue;
+            }
+
+            int classes = in.readUnsignedShort();
+            for (int j = 0; j < classes; ++j) {
+                String innerClass = utf8s[classNameRefs[in.readUnsignedShort()]];
+                // outer class, inner name and inner access flags
+                skip(in, 6);
+                if (thisClass.equals(innerClass)) {
+                    return true;
+                }
+            }
+
+            // there is at most one InnerClasses attribute
+            return false;
+        }
+
+        return false;
+    }
+
+    private static void readConstantPool(DataInputStream in, String[] utf8s, int[] classNameRefs) throws IOException {
+        for (int i = 1; i < utf8s.length; ++i) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case 1: // Utf8
+                utf8s[i] = in.readUTF();
+                break;
+            case 7: // Class
+                classNameRefs[i] = in.readUnsignedShort();
+                break;
+            case 8: // String
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+                skip(in, 2);
+                break;
+            case 15: // MethodHandle
+                skip(in, 3);
+                break;
+            case 3: // Integer
+            case 4: // Float
+            case 9: // Fieldref
+            case 10: // Methodref
+            case 11: // InterfaceMethodref
+            case 12: // NameAndType
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+                skip(in, 4);
+                break;
+            case 5: // Long
+            case 6: // Double
+                skip(in, 8);
+                // these take up 2 slots in the constant pool
+                ++i;
+                break;
+            default:
+                throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int cnt = in.readUnsignedShort();
+        for (int i = 0; i < cnt; ++i) {
+            // the name
+            in.readUnsignedShort();
+            skip(in, in.readInt() & 0xFFFFFFFFL);
+        }
+    }
+
+    private static void skip(DataInputStream in, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                // skip() is allowed to skip nothing even if not at the end of the stream
+                in.readByte();
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * Collects the data of the parsed class files into the growing primitive arrays. The strings are deduplicated.
+     */
+    private static final class Builder {
+        private final Map<String, Integer> stringIndices = new HashMap<>();
+        private String[] strings = new String[256];
+        private int stringCount;
+        private int[] classes = new int[16 * CLASS_RECORD_SIZE];
+        private int classCount;
+        private int[] interfaces = new int[16];
+        private int interfaceCount;
+        private int[] members = new int[64 * MEMBER_RECORD_SIZE];
+        private int memberCount;
+        private final Map<String, Integer> classIndices = new LinkedHashMap<>();
+
+        void parse(InputStream classFile) throws IOException {
+            DataInputStream in = new DataInputStream(classFile);
+            if (in.readInt() != 0xCAFEBABE) {
+                throw new IOException("Not a class file.");
+            }
+
+            // minor and major version
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+
+            int cpCount = in.readUnsignedShort();
+            String[] utf8s = new String[cpCount];
+            int[] classNameRefs = new int[cpCount];
+            readConstantPool(in, utf8s, classNameRefs);
+
+            int access = in.readUnsignedShort();
+            int name = className(utf8s, classNameRefs, in.readUnsignedShort());
+            int superName = className(utf8s, classNameRefs, in.readUnsignedShort());
+
+            int interfacesStart = interfaceCount;
+            int cnt = in.readUnsignedShort();
+            for (int i = 0; i < cnt; ++i) {
+                interfaces = ensureCapacity(interfaces, interfaceCount + 1);
+                interfaces[interfaceCount++] = className(utf8s, classNameRefs, in.readUnsignedShort());
+            }
+            int interfacesEnd = interfaceCount;
+
+            int fieldsStart = memberCount;
+            readMembers(in, utf8s);
+            int methodsStart = memberCount;
+            readMembers(in, utf8s);
+            int methodsEnd = memberCount;
+
+            // the class attributes are not interesting
+
+            classes = ensureCapacity(classes, (classCount + 1) * CLASS_RECORD_SIZE);
+            int offset = classCount * CLASS_RECORD_SIZE;
+            classes[offset + CLASS_NAME] = name;
+            classes[offset + CLASS_SUPER_NAME] = superName;
+            classes[offset + CLASS_ACCESS] = access;
+            classes[offset + CLASS_INTERFACES_START] = interfacesStart;
+            classes[offset + CLASS_INTERFACES_END] = interfacesEnd;
+            classes[offset + CLASS_FIELDS_START] = fieldsStart;
+            classes[offset + CLASS_METHODS_START] = methodsStart;
+            classes[offset + CLASS_METHODS_END] = methodsEnd;
+
+            classIndices.put(strings[name], classCount++);
+        }
+
+        JarIndex build() {
+            return new JarIndex(Arrays.copyOf(strings, stringCount),
+                    Arrays.copyOf(classes, classCount * CLASS_RECORD_SIZE), Arrays.copyOf(interfaces, interfaceCount),
+                    Arrays.copyOf(members, memberCount * MEMBER_RECORD_SIZE),
+                    Collections.unmodifiableMap(classIndices));
+        }
+
+        private void readMembers(DataInputStream in, String[] utf8s) throws IOException {
+            int cnt = in.readUnsignedShort();
+            for (int i = 0; i < cnt; ++i) {
+                int access = in.readUnsignedShort();
+                int name = string(utf8s[in.readUnsignedShort()]);
+                int descriptor = string(utf8s[in.readUnsignedShort()]);
+                skipAttributes(in);
+
+                members = ensureCapacity(members, (memberCount + 1) * MEMBER_RECORD_SIZE);
+                int offset = memberCount * MEMBER_RECORD_SIZE;
+                members[offset + MEMBER_NAME] = name;
+                members[offset + MEMBER_DESCRIPTOR] = descriptor;
+                members[offset + MEMBER_ACCESS] = access;
+                memberCount++;
+            }
+        }
+
+        private int className(String[] utf8s, int[] classNameRefs, int classRef) {
+            if (classRef == 0) {
+                return NO_STRING;
+            }
+
+            return string(utf8s[classNameRefs[classRef]].replace('/', '.'));
+        }
+
+        private int string(String s) {
+            Integer idx = stringIndices.get(s);
+            if (idx == null) {
+                if (stringCount == strings.length) {
+                    strings = Arrays.copyOf(strings, strings.length * 2);
+                }
+                idx = stringCount++;
+                strings[idx] = s;
+                stringIndices.put(s, idx);
+            }
+
+            return idx;
+        }
+
+        private static int[] ensureCapacity(int[] array, int size) {
+            return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+        }
+    }
+}
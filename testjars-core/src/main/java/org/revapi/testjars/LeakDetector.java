@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the environments and compile roots that are still open and reports them when the JVM exits. Those are
+ * the ones leaked by the tests that don't close their environments or don't clean up their compiler managers.
+ * <p>
+ * If the {@value CompilerManager#TRACK_ENVIRONMENTS_PROPERTY} system property is set to true, the stack traces of the
+ * creation of the environments are captured and included in the report.
+ */
+final class LeakDetector {
+    private static final Logger LOG = LoggerFactory.getLogger(LeakDetector.class);
+
+    private static final boolean CAPTURE_STACK_TRACES = Boolean.getBoolean(CompilerManager.TRACK_ENVIRONMENTS_PROPERTY);
+
+    /**
+     * The values are the creation stack traces or the environments themselves if the stack traces are not captured.
+     */
+    private static final Map<CompiledJar.Environment, Object> ENVIRONMENTS = new ConcurrentHashMap<>();
+
+    private static final Map<Path, Boolean> COMPILE_ROOTS = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(LeakDetector::report, "revapi-testjars-leak-report"));
+    }
+
+    private LeakDetector() {
+        throw new AssertionError();
+    }
+
+    static void environmentOpened(CompiledJar.Environment env) {
+        ENVIRONMENTS.put(env, CAPTURE_STACK_TRACES ? new Throwable("The leaked environment was created here.") : env);
+        env.onClose(() -> ENVIRONMENTS.remove(env));
+    }
+
+    static void compileRootCreated(Path root) {
+        COMPILE_ROOTS.put(root, Boolean.TRUE);
+    }
+
+    static void compileRootDeleted(Path root) {
+        COMPILE_ROOTS.remove(root);
+    }
+
+    /**
+     * @return the number of environments that have not been closed yet
+     */
+    static int openEnvironments() {
+        return ENVIRONMENTS.size();
+    }
+
+    private static void report() {
+        int environments = ENVIRONMENTS.size();
+        if (environments > 0) {
+            LOG.warn(
+                    "{} analysis environment(s) were not closed. Close the environments (or the compiled jars) once"
+                            + " they're no longer needed or clean up the compiler managers that created them.",
+                    environments);
+
+            if (CAPTURE_STACK_TRACES) {
+                ENVIRONMENTS.values().forEach(trace -> LOG.warn("Leaked environment:", (Throwable) trace));
+            } else {
+                LOG.warn("Set the {} system property to true to report where the environments were created.",
+                        CompilerManager.TRACK_ENVIRONMENTS_PROPERTY);
+            }
+        }
+
+        for (Path root : COMPILE_ROOTS.keySet()) {
+            LOG.warn("The compile root {} was not cleaned up.", root);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * The compiler API of Java 8 only understands {@link java.io.File}s. This file manager makes it possible to write the
+ * compiled classes to and read the classpath from {@link Path}s on an arbitrary NIO file system.
+ * <p>
+ * The classpath entries on the default file system are handled by the standard file manager as usual, only the entries
+ * on other file systems are served by this file manager.
+ */
+final class PathJavaFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    private final Path classOutput;
+    private final List<Path> classPathRoots = new ArrayList<>();
+    private final List<FileSystem> openedArchives = new ArrayList<>();
+
+    /**
+     * @param fileManager
+     *            the standard file manager to delegate to
+     * @param classOutput
+     *            the directory to write the compiled classes to or null if the compiled classes should be discarded
+     * @param foreignClassPath
+     *            the classpath entries (directories or jar files) that are not on the default file system
+     */
+    PathJavaFileManager(StandardJavaFileManager fileManager, Path classOutput, List<Path> foreignClassPath)
+            throws IOException {
+        super(fileManager);
+        this.classOutput = classOutput;
+
+        try {
+            for (Path p : foreignClassPath) {
+                if (Files.isDirectory(p)) {
+                    classPathRoots.add(p);
+                } else {
+                    FileSystem archive = FileSystems.newFileSystem(p, (ClassLoader) null);
+                    openedArchives.add(archive);
+                    archive.getRootDirectories().forEach(classPathRoots::add);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            closeArchives();
+            throw e;
+        }
+    }
+
+    static boolean isOnDefaultFileSystem(Path path) {
+        return path.getFileSystem() == FileSystems.getDefault();
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+            FileObject sibling) throws IOException {
+        if (location == StandardLocation.CLASS_OUTPUT) {
+            String relativePath = className.replace('.', '/') + kind.extension;
+            return classOutput == null ? new DiscardedOutput(relativePath, kind)
+                    : new PathJavaFileObject(classOutput.resolve(relativePath), className, kind);
+        }
+
+        return super.getJavaFileForOutput(location, className, kind, sibling);
+    }
+
+    @Override
+    public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling)
+            throws IOException {
+        if (location == StandardLocation.CLASS_OUTPUT) {
+            String dir = packageName.isEmpty() ? "" : packageName.replace('.', '/') + "/";
+            return classOutput == null ? new DiscardedOutput(dir + relativeName, JavaFileObject.Kind.OTHER)
+                    : new PathJavaFileObject(classOutput.resolve(dir + relativeName), null, JavaFileObject.Kind.OTHER);
+        }
+
+        return super.getFileForOutput(location, packageName, relativeName, sibling);
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds,
+            boolean recurse) throws IOException {
+        Iterable<JavaFileObject> standard = super.list(location, packageName, kinds, recurse);
+        if (location != StandardLocation.CLASS_PATH || classPathRoots.isEmpty()) {
+            return standard;
+        }
+
+        List<JavaFileObject> ret = new ArrayList<>();
+        standard.forEach(ret::add);
+
+        for (Path root : classPathRoots) {
+            Path pkgDir = packageName.isEmpty() ? root : root.resolve(packageName.replace('.', '/'));
+            if (!Files.isDirectory(pkgDir)) {
+                continue;
+            }
+
+            try (Stream<Path> files = recurse ? Files.walk(pkgDir) : Files.list(pkgDir)) {
+                Iterator<Path> it = files.iterator();
+                while (it.hasNext()) {
+                    Path file = it.next();
+                    JavaFileObject.Kind kind = kindOf(file);
+                    if (kinds.contains(kind) && Files.isRegularFile(file)) {
+                        ret.add(new PathJavaFileObject(file, toBinaryName(root, file, kind), kind));
+                    }
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if (file instanceof PathJavaFileObject) {
+            return ((PathJavaFileObject) file).binaryName();
+        }
+
+        return super.inferBinaryName(location, file);
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b) {
+        if (a instanceof PathJavaFileObject && b instanceof PathJavaFileObject) {
+            return ((PathJavaFileObject) a).path().equals(((PathJavaFileObject) b).path());
+        } else if (a instanceof PathJavaFileObject || b instanceof PathJavaFileObject || a instanceof DiscardedOutput
+                || b instanceof DiscardedOutput) {
+            return a.equals(b);
+        }
+
+        return super.isSameFile(a, b);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            closeArchives();
+        }
+    }
+
+    private void closeArchives() throws IOException {
+        IOException failure = null;
+        for (FileSystem fs : openedArchives) {
+            try {
+                fs.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+
+        openedArchives.clear();
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * An output file that is never written anywhere. Used by the probes that are only interested in the analysis
+     * results, not the compiled classes.
+     */
+    private static final class DiscardedOutput extends SimpleJavaFileObject {
+        DiscardedOutput(String relativePath, Kind kind) {
+            super(URI.create("discarded:/" + relativePath), kind);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+        }
+
+        @Override
+        public Writer openWriter() {
+            return new OutputStreamWriter(openOutputStream(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static JavaFileObject.Kind kindOf(Path file) {
+        String name = file.getFileName().toString();
+        for (JavaFileObject.Kind k : JavaFileObject.Kind.values()) {
+            if (k != JavaFileObject.Kind.OTHER && name.endsWith(k.extension)) {
+                return k;
+            }
+        }
+
+        return JavaFileObject.Kind.OTHER;
+    }
+
+    private static String toBinaryName(Path root, Path file, JavaFileObject.Kind kind) {
+        StringBuilder bld = new StringBuilder();
+        for (Path p : root.relativize(file)) {
+            if (bld.length() > 0) {
+                bld.append('.');
+            }
+            bld.append(p.toString());
+        }
+
+        bld.setLength(bld.length() - kind.extension.length());
+        return bld.toString();
+    }
+}
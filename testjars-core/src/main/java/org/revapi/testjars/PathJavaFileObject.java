@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * A java file object backed by a {@link Path} that can live on any NIO file system, not just the default one.
+ */
+final class PathJavaFileObject extends SimpleJavaFileObject {
+    private final Path path;
+    private final String binaryName;
+
+    PathJavaFileObject(Path path, String binaryName, Kind kind) {
+        super(toUri(path), kind);
+        this.path = path;
+        this.binaryName = binaryName;
+    }
+
+    private static URI toUri(Path path) {
+        URI uri = path.toUri();
+        if (uri.getPath() != null) {
+            return uri;
+        }
+
+        // opaque URIs, like the ones of the zip file system, don't have a path that javac could use to figure out the
+        // name of the file. Let's just invent a hierarchical one.
+        try {
+            return new URI(uri.getScheme(), null, path.toAbsolutePath().toString(), null);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Could not create a URI for " + path, e);
+        }
+    }
+
+    Path path() {
+        return path;
+    }
+
+    String binaryName() {
+        return binaryName;
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+        return Files.newInputStream(path);
+    }
+
+    @Override
+    public OutputStream openOutputStream() throws IOException {
+        Path parent = path.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        return Files.newOutputStream(path);
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long getLastModified() {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    @Override
+    public boolean delete() {
+        try {
+            return Files.deleteIfExists(path);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes directories, either synchronously or in the background after atomically moving them out of the way. Also
+ * takes care of sweeping the compile roots left behind by JVMs that didn't get the chance to clean up after themselves.
+ * <p>
+ * The liveness of a compile root is determined by a lock held on the {@value #LOCK_FILE_NAME} file inside it for as
+ * long as the root is in use.
+ */
+final class Trash {
+    private static final Logger LOG = LoggerFactory.getLogger(Trash.class);
+
+    static final String LOCK_FILE_NAME = ".lock";
+
+    private static final String TRASH_INFIX = "-trash-";
+
+    /**
+     * Compile roots without a lock file (which can happen if the JVM crashed right after creating it) are only
+     * considered stale after this time.
+     */
+    private static final long UNLOCKED_ROOT_GRACE_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final long SHUTDOWN_DRAIN_TIMEOUT_SECONDS = 30;
+
+    private static final Set<Path> SWEPT_DIRECTORIES = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Guards the creation of the lock files against the checks of the sweep, so that the sweep doesn't mistake a lock
+     * file created by this JVM but not locked yet for a stale one.
+     */
+    private static final Object LOCK_FILE_GUARD = new Object();
+
+    private static final ExecutorService DELETER;
+
+    static {
+        AtomicInteger threadCount = new AtomicInteger();
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        ThreadPoolExecutor deleter = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "revapi-testjars-trash-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        deleter.allowCoreThreadTimeOut(true);
+        DELETER = deleter;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(Trash::drain, "revapi-testjars-trash-drain"));
+    }
+
+    private Trash() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Moves the provided file or directory out of the way and deletes it in the background. If the file cannot be
+     * atomically renamed, it is deleted in place, still in the background.
+     */
+    static void discard(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        Path toDelete = path;
+        Path fileName = path.getFileName();
+        if (fileName != null) {
+            Path trashed = path.resolveSibling(fileName.toString() + TRASH_INFIX + UUID.randomUUID());
+            try {
+                toDelete = Files.move(path, trashed, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                LOG.debug("Atomic move not supported for {}, will delete it in place.", path);
+            } catch (IOException e) {
+                LOG.debug("Failed to move " + path + " to trash, will delete it in place.", e);
+            }
+        }
+
+        Path target = toDelete;
+        try {
+            DELETER.execute(() -> deleteRecursively(target));
+        } catch (RejectedExecutionException e) {
+            // we're shutting down
+            deleteRecursively(target);
+        }
+    }
+
+    /**
+     * Deletes the provided file or directory with all its contents, logging a warning on failure.
+     */
+    static void deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.deleteIfExists(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                    if (exc instanceof NoSuchFileException) {
+                        // someone else is deleting the same directory - that's fine
+                        return FileVisitResult.CONTINUE;
+                    }
+                    throw exc;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.deleteIfExists(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            LOG.warn("Failed to clean up directory " + dir.toAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Marks the provided compile root as live for as long as the returned object is not closed.
+     *
+     * @return the lock on the root or null if the file system of the root doesn't support locking
+     */
+    static Closeable lock(Path compileRoot) {
+        FileChannel channel = null;
+        try {
+            FileLock lock;
+            synchronized (LOCK_FILE_GUARD) {
+                channel = FileChannel.open(compileRoot.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+                lock = channel.lock();
+            }
+            FileChannel ch = channel;
+            return () -> {
+                try {
+                    lock.release();
+                } finally {
+                    ch.close();
+                }
+            };
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.debug("Could not lock the compile root " + compileRoot + ". It will not be protected from sweeping.",
+                    e);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // we're already in an error handler
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Schedules the removal of all the stale compile roots with the provided prefix in the provided directory. This is
+     * only done once per JVM for each directory.
+     */
+    static void sweepStaleRoots(Path directory, String prefix) {
+        Path dir = directory.toAbsolutePath();
+        if (!SWEPT_DIRECTORIES.add(dir)) {
+            return;
+        }
+
+        DELETER.execute(() -> {
+            try (DirectoryStream<Path> candidates = Files.newDirectoryStream(dir, prefix + "*")) {
+                for (Path candidate : candidates) {
+                    if (Files.isDirectory(candidate) && isStale(candidate)) {
+                        LOG.debug("Removing stale compile root {}", candidate);
+                        deleteRecursively(candidate);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.debug("Failed to sweep stale compile roots in " + dir, e);
+            }
+        });
+    }
+
+    private static boolean isStale(Path root) {
+        Path lockFile = root.resolve(LOCK_FILE_NAME);
+        if (!Files.exists(lockFile)) {
+            try {
+                long age = System.currentTimeMillis() - Files.getLastModifiedTime(root).toMillis();
+                return age > UNLOCKED_ROOT_GRACE_PERIOD_MILLIS;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        synchronized (LOCK_FILE_GUARD) {
+            try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    return false;
+                }
+                lock.release();
+                return true;
+            } catch (OverlappingFileLockException e) {
+                // locked by this very JVM
+                return false;
+            } catch (IOException | UnsupportedOperationException e) {
+                return false;
+            }
+        }
+    }
+
+    private static void drain() {
+        DELETER.shutdown();
+        try {
+            if (!DELETER.awaitTermination(SHUTDOWN_DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOG.warn("Failed to delete all the compiled jars in {} seconds.", SHUTDOWN_DRAIN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -18,13 +18,55 @@ package org.revapi.testjars;
 
 import static java.util.Collections.emptySet;
 import static java.util.Collections.singleton;
+import static java.util.stream.Collectors.toList;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
@@ -93,6 +135,370 @@ class CompilerManagerTest {
         assertNotNull(env.elements().getTypeElement("pkg.ClassInPackage"));
     }
 
+    @Test
+    void shouldAnalyzeWithoutParkingThreads() throws Exception {
+        CompiledJar output = compilerManager.createJar().classPathSources("/sub-directory/", "pkg/ClassInPackage.java")
+                .build();
+
+        CompiledJar.Environment env = output.analyze();
+        assertNotNull(env.elements().getTypeElement("pkg.ClassInPackage"));
+        assertTrue(Thread.getAllStackTraces().keySet().stream().noneMatch(
+                t -> t.getName().startsWith("revapi-testjars-compiler") && t.getState() == Thread.State.WAITING));
+
+        env.close();
+        assertTrue(env.isClosed());
+
+        CompiledJar.Environment reopened = output.analyze();
+        assertNotSame(env, reopened);
+        assertNotNull(reopened.elements().getTypeElement("pkg.ClassInPackage"));
+    }
+
+    @Test
+    void shouldAnalyzeUsingTheBuildCompilation() throws Exception {
+        CompiledJar output = compilerManager.createJar().classPathSources("/parameters/", "pkg/WithParameters.java")
+                .buildAndAnalyze();
+
+        try (JarFile jf = new JarFile(output.jarFile())) {
+            assertNotNull(jf.getJarEntry("pkg/WithParameters.class"));
+            assertEquals(1, jf.stream().filter(e -> e.getName().endsWith(".class")).count());
+        }
+
+        CompiledJar.Environment env = output.analyze();
+        TypeElement type = env.elements().getTypeElement("pkg.WithParameters");
+        assertNotNull(type);
+        assertNotNull(env.elements().getTypeElement("java.lang.Object"));
+
+        // the parameter names are not in the class files, so they're only known when analyzing the sources
+        ExecutableElement method = ElementFilter.methodsIn(type.getEnclosedElements()).get(0);
+        assertEquals("parameterName", method.getParameters().get(0).getSimpleName().toString());
+
+        env.close();
+        assertNotNull(output.analyze().elements().getTypeElement("pkg.WithParameters"));
+    }
+
+    @Test
+    void shouldRunProcessorsFromClasspathWhenBuildingAndAnalyzing() throws Exception {
+        CompiledJar processor = compilerManager.createJar()
+                .classPathSources("/processor/", "proc/GeneratingProcessor.java")
+                .classPathResources("/processor/", "META-INF/services/javax.annotation.processing.Processor").build();
+
+        CompiledJar output = compilerManager.createJar().classPathSources(null, "Root.java")
+                .dependencies(processor.jarPath()).buildAndAnalyze();
+
+        try (JarFile jf = new JarFile(output.jarFile())) {
+            assertNotNull(jf.getJarEntry("generated.txt"));
+        }
+        assertNotNull(output.analyze().elements().getTypeElement("Root"));
+    }
+
+    @Test
+    void shouldAnalyzeBuiltJarsFromClassesDirectory() throws Exception {
+        CompiledJar dep = compilerManager.createJar().classPathSources("/deps/", "dep/Dep.java").build();
+        CompiledJar jar = compilerManager.createJar().classPathSources("/deps/", "main/Main.java")
+                .dependencies(dep.jarPath()).build();
+
+        // the analysis doesn't need the jar files, only the classes they were composed from
+        Files.delete(jar.jarPath());
+        Files.delete(dep.jarPath());
+
+        CompiledJar.Environment env = jar.analyze();
+        assertEquals(Collections.singletonList("Main"),
+                env.typesInArchive().map(t -> t.getQualifiedName().toString()).collect(toList()));
+        assertNotNull(env.elements().getTypeElement("Dep"));
+    }
+
+    @Test
+    void shouldCloseLeastRecentlyUsedEnvironmentsOverBudget() throws Exception {
+        compilerManager.environmentBudget(2);
+
+        CompiledJar a = compilerManager.createJar().classPathSources(null, "Root.java").build();
+        CompiledJar b = compilerManager.createJar().classPathSources("/sub-directory/", "pkg/ClassInPackage.java")
+                .build();
+        CompiledJar c = compilerManager.createJar().classPathSources("/parameters/", "pkg/WithParameters.java")
+                .buildAndAnalyze();
+
+        CompiledJar.Environment envA = a.analyze();
+        CompiledJar.Environment envB = b.analyze();
+        assertNotNull(c.analyze());
+        assertTrue(envA.isClosed());
+        assertFalse(envB.isClosed());
+
+        CompiledJar.Environment reopenedA = a.analyze();
+        assertNotSame(envA, reopenedA);
+        assertNotNull(reopenedA.elements().getTypeElement("Root"));
+        assertTrue(envB.isClosed());
+
+        try (CompiledJar jar = c) {
+            assertFalse(jar.analyze().isClosed());
+        }
+        CompiledJar.Environment envC = c.analyze();
+        assertNotNull(envC.elements().getTypeElement("pkg.WithParameters"));
+    }
+
+    @Test
+    void shouldCloseIdleEnvironments() throws Exception {
+        compilerManager.environmentIdleTimeout(200, TimeUnit.MILLISECONDS);
+        CompiledJar jar = compilerManager.createJar().classPathSources(null, "Root.java").build();
+
+        int open = LeakDetector.openEnvironments();
+        CompiledJar.Environment env = jar.analyze();
+        assertEquals(open + 1, LeakDetector.openEnvironments());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!env.isClosed() && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertTrue(env.isClosed());
+        assertEquals(open, LeakDetector.openEnvironments());
+        assertNotSame(env, jar.analyze());
+    }
+
+    @Test
+    void shouldShareEnvironmentsOfExternalJars() throws Exception {
+        CompiledJar built = compilerManager.createJar().classPathSources(null, "Root.java").build();
+        Path external = Files.createTempFile("CompilerManagerTest", ".jar");
+        Files.copy(built.jarPath(), external, StandardCopyOption.REPLACE_EXISTING);
+
+        try (CompilerManager first = new CompilerManager().shareEnvironments(true).sharedEnvironmentIdleTimeout(0,
+                TimeUnit.MILLISECONDS);
+                CompilerManager second = new CompilerManager().shareEnvironments(true).sharedEnvironmentIdleTimeout(0,
+                        TimeUnit.MILLISECONDS)) {
+            int sharedBefore = EnvironmentCache.size();
+
+            CompiledJar.Environment a = first.jarFrom(external).analyze();
+            CompiledJar.Environment b = second.jarFrom(external).analyze();
+
+            assertNotSame(a, b);
+            assertSame(a.elements(), b.elements());
+            assertNotNull(b.elements().getTypeElement("Root"));
+            assertEquals(sharedBefore + 1, EnvironmentCache.size());
+
+            // the jars built by the manager are never shared
+            assertNotSame(built.analyze().elements(), a.elements());
+
+            a.close();
+            assertEquals(sharedBefore + 1, EnvironmentCache.size());
+            assertNotNull(b.elements().getTypeElement("Root"));
+
+            b.close();
+            assertEquals(sharedBefore, EnvironmentCache.size());
+
+            // a changed file is not mistaken for the previous version of it
+            CompiledJar.Environment old = first.jarFrom(external).analyze();
+            CompiledJar changed = compilerManager.createJar().classPathSources("/deps/dep/", "Dep.java").build();
+            Files.copy(changed.jarPath(), external, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(external, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+            try (CompiledJar.Environment c = second.jarFrom(external).analyze()) {
+                assertNotSame(old.elements(), c.elements());
+                assertNotNull(c.elements().getTypeElement("Dep"));
+            }
+            old.close();
+        } finally {
+            Files.delete(external);
+        }
+    }
+
+    @Test
+    void shouldIndexTypesInArchive() throws Exception {
+        CompiledJar dep = compilerManager.createJar().classPathSources("/sub-directory/", "pkg/ClassInPackage.java")
+                .build();
+        CompiledJar jar = compilerManager.createJar().classPathSources(null, "Root.java")
+                .classPathSources("/parameters/", "pkg/WithParameters.java").dependencies(dep.jarPath()).build();
+
+        for (CompiledJar.Environment env : Arrays.asList(jar.analyze(),
+                compilerManager.createJar().classPathSources(null, "Root.java")
+                        .classPathSources("/parameters/", "pkg/WithParameters.java").buildAndAnalyze().analyze())) {
+            assertEquals(Arrays.asList("Root", "pkg.WithParameters"),
+                    env.typesInArchive().map(t -> t.getQualifiedName().toString()).collect(toList()));
+            assertEquals(Arrays.asList("", "pkg"),
+                    env.packagesInArchive().map(p -> p.getQualifiedName().toString()).collect(toList()));
+            assertEquals(Collections.singletonList("pkg.WithParameters"),
+                    env.typesInPackage("pkg").map(t -> t.getQualifiedName().toString()).collect(toList()));
+            assertEquals(0, env.typesInPackage("java.lang").count());
+        }
+    }
+
+    @Test
+    void shouldIndexTopLevelTypesWithDollarInName() throws Exception {
+        CompiledJar jar = compilerManager.createJar().classPathSources("/dollar/", "pkg/Top$Level.java").build();
+
+        try (JarFile jf = new JarFile(jar.jarFile())) {
+            assertNotNull(jf.getJarEntry("pkg/Top$Level$Member.class"));
+            assertNotNull(jf.getJarEntry("pkg/Top$Level$1.class"));
+        }
+
+        assertEquals(Collections.singletonList("pkg.Top$Level"),
+                jar.analyze().typesInArchive().map(t -> t.getQualifiedName().toString()).collect(toList()));
+    }
+
+    @Test
+    void shouldAnalyzePairTogether() throws Exception {
+        CompiledJar oldJar = compilerManager.createJar().classPathSources(null, "Root.java").build();
+        CompiledJar newJar = compilerManager.createJar().classPathSources(null, "Root.java")
+                .classPathSources("/parameters/", "pkg/WithParameters.java").build();
+
+        CompilerManager.EnvironmentPair pair = compilerManager.analyzePair(oldJar, newJar);
+        assertSame(oldJar.analyze(), pair.oldEnvironment());
+        assertSame(newJar.analyze(), pair.newEnvironment());
+        assertNull(pair.oldEnvironment().elements().getTypeElement("pkg.WithParameters"));
+        assertNotNull(pair.newEnvironment().elements().getTypeElement("pkg.WithParameters"));
+
+        pair.close();
+        assertTrue(pair.oldEnvironment().isClosed());
+        assertTrue(pair.newEnvironment().isClosed());
+    }
+
+    @Test
+    void shouldRestrictAnalysisToPackages() throws Exception {
+        CompiledJar built = compilerManager.createJar().classPathSources(null, "Root.java")
+                .classPathSources("/parameters/", "pkg/WithParameters.java").build();
+        CompiledJar jar = compilerManager.jarFrom(built.jarPath());
+
+        CompiledJar.Environment env = jar.restrictAnalysisTo("pkg").analyze();
+        assertEquals(Collections.singletonList("pkg.WithParameters"),
+                env.typesInArchive().map(t -> t.getQualifiedName().toString()).collect(toList()));
+        assertEquals(0, env.typesInPackage("").count());
+        // the rest of the jar is still resolvable
+        assertNotNull(env.elements().getTypeElement("Root"));
+
+        assertEquals(0, jar.restrictAnalysisTo("pk").analyze().typesInArchive().count());
+        assertEquals(2, jar.analyze().typesInArchive().count());
+    }
+
+    @Test
+    void shouldIndexClassFilesWithoutCompiler() throws Exception {
+        CompiledJar jar = compilerManager.createJar().classPathSources(null, "Root.java")
+                .classPathSources("/parameters/", "pkg/WithParameters.java").build();
+
+        JarIndex index = jar.index();
+        assertSame(index, jar.index());
+        assertEquals(new HashSet<>(Arrays.asList("Root", "pkg.WithParameters")), index.classNames());
+        assertNull(index.classInfo("java.lang.Object"));
+
+        JarIndex.ClassInfo cls = index.classInfo("pkg.WithParameters");
+        assertNotNull(cls);
+        assertEquals("java.lang.Object", cls.superClassName());
+        assertTrue(cls.interfaceNames().isEmpty());
+        assertTrue(Modifier.isPublic(cls.accessFlags()));
+
+        JarIndex.MemberInfo method = cls.methods().stream().filter(m -> "method".equals(m.name())).findFirst()
+                .orElseThrow(AssertionError::new);
+        assertEquals("(Ljava/lang/String;)V", method.descriptor());
+        assertTrue(Modifier.isPublic(method.accessFlags()));
+    }
+
+    @Test
+    void shouldReadEntriesFromCentralDirectory() throws Exception {
+        CompiledJar jar = compilerManager.createJar().classPathSources(null, "Root.java")
+                .classPathSources("/parameters/", "pkg/WithParameters.java").build();
+
+        JarEntries entries = jar.entries();
+        assertSame(entries, jar.entries());
+        assertTrue(entries.names().containsAll(Arrays.asList("Root.class", "pkg/", "pkg/WithParameters.class")));
+        assertNull(entries.entry("Nonexistent.class"));
+
+        JarEntries.Entry root = entries.entry("Root.class");
+        assertNotNull(root);
+        assertFalse(root.isDirectory());
+        byte[] contents = Files.readAllBytes(jar.classesPath().resolve("Root.class"));
+        try (InputStream in = root.open()) {
+            assertArrayEquals(contents, readAll(in));
+        }
+        assertEquals(contents.length, root.size());
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        assertEquals(crc.getValue(), root.crc());
+
+        Path stored = Files.createTempFile("CompilerManagerTest", ".jar");
+        try {
+            try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(stored))) {
+                ZipEntry entry = new ZipEntry("Root.class");
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(contents.length);
+                entry.setCrc(crc.getValue());
+                out.putNextEntry(entry);
+                out.write(contents);
+                out.closeEntry();
+            }
+
+            JarEntries.Entry storedRoot = compilerManager.jarFrom(stored).entries().entry("Root.class");
+            assertNotNull(storedRoot);
+            ByteBuffer view = storedRoot.storedContents();
+            assertNotNull(view);
+            byte[] viewed = new byte[view.remaining()];
+            view.get(viewed);
+            assertArrayEquals(contents, viewed);
+        } finally {
+            Files.delete(stored);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void shouldLoadClassesFromMemory() throws Exception {
+        CompiledJar jar = compilerManager.createJar().classPathSources(null, "Root.java")
+                .classPathSources("/parameters/", "pkg/WithParameters.java").build();
+
+        CompiledJarClassLoader loader = jar.classLoader(getClass().getClassLoader());
+        Class<?> cls = loader.loadClass("pkg.WithParameters");
+        assertSame(loader, cls.getClassLoader());
+        assertNotNull(cls.getMethod("method", String.class));
+        assertEquals("pkg", cls.getPackage().getName());
+
+        try (InputStream in = loader.getResourceAsStream("Root.class")) {
+            assertNotNull(in);
+            assertEquals(0xCAFEBABE, new DataInputStream(in).readInt());
+        }
+
+        loader.close();
+        assertSame(cls, loader.loadClass("pkg.WithParameters"));
+        assertThrows(ClassNotFoundException.class, () -> loader.loadClass("Root"));
+        assertNotNull(jar.classLoader(null).loadClass("Root"));
+    }
+
+    @Test
+    void shouldRunSubmittedQueriesInConfinedThread() throws Exception {
+        CompiledJar.Environment env = compilerManager.createJar()
+                .classPathSources("/parameters/", "pkg/WithParameters.java").build().analyze();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<CompletableFuture<String>>> submitted = new ArrayList<>();
+            Set<Thread> threads = ConcurrentHashMap.newKeySet();
+            for (int i = 0; i < 64; ++i) {
+                String typeName = i % 2 == 0 ? "pkg.WithParameters" : "java.lang.String";
+                submitted.add(executor.submit(() -> env.submit(e -> {
+                    threads.add(Thread.currentThread());
+                    return e.elements().getTypeElement(typeName).getQualifiedName().toString();
+                })));
+            }
+
+            for (int i = 0; i < submitted.size(); ++i) {
+                String expected = i % 2 == 0 ? "pkg.WithParameters" : "java.lang.String";
+                assertEquals(expected, submitted.get(i).get(1, TimeUnit.MINUTES).get(1, TimeUnit.MINUTES));
+            }
+
+            assertEquals(1, threads.size());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        env.close();
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> env.submit(e -> e.elements()).get(1, TimeUnit.MINUTES));
+        assertTrue(failure.getCause() instanceof IllegalStateException);
+    }
+
     @Test
     void shouldCompileWithDependenciesUsingResolver() throws Exception {
         CompiledJar dep = compilerManager.createJar().classPathSources("/deps/dep/", "Dep.java").build();
@@ -116,4 +522,303 @@ class CompilerManagerTest {
 
         // cool, it's enough for us to know that the above compilation passed.
     }
+
+    @Test
+    void shouldCompileAndAnalyzeOnNonDefaultFileSystem() throws Exception {
+        Path zip = Files.createTempFile("CompilerManagerTest", ".zip");
+        Files.delete(zip);
+
+        try (FileSystem fs = FileSystems.newFileSystem(URI.create("jar:" + zip.toUri()),
+                Collections.singletonMap("create", "true"))) {
+            CompilerManager inMemory = new CompilerManager(fs.getPath("/compile-root"));
+            try {
+                CompiledJar dep = inMemory.createJar().classPathSources("/deps/dep/", "Dep.java").build();
+                CompiledJar main = inMemory.createJar().classPathSources("/deps/main/", "Main.java")
+                        .dependencies(dep.jarPath()).build();
+
+                assertTrue(Files.exists(main.jarPath()));
+                assertTrue(Files.exists(main.classesPath().resolve("Main.class")));
+
+                CompiledJar.Environment env = main.analyze();
+                assertNotNull(env.elements().getTypeElement("Main"));
+                assertNotNull(env.elements().getTypeElement("Dep"));
+            } finally {
+                inMemory.cleanUp();
+            }
+
+            try (Stream<Path> leftovers = Files.list(fs.getPath("/compile-root"))) {
+                assertFalse(leftovers.findAny().isPresent());
+            }
+        } finally {
+            Files.deleteIfExists(zip);
+        }
+    }
+
+    @Test
+    void shouldCleanUpInBackground() throws Exception {
+        Path parent = Files.createTempDirectory("CompilerManagerTest");
+        CompilerManager manager = new CompilerManager(parent).cleanUpMode(CompilerManager.CleanUpMode.BACKGROUND);
+
+        CompiledJar output = manager.createJar().classPathSources(null, "Root.java").build();
+        output.analyze();
+
+        manager.cleanUp();
+
+        // the jar is moved out of the way synchronously...
+        assertFalse(Files.exists(output.jarPath()));
+
+        // ... and deleted asynchronously
+        awaitEmpty(parent);
+        Files.delete(parent);
+    }
+
+    @Test
+    void shouldSweepStaleCompileRoots() throws Exception {
+        Path parent = Files.createTempDirectory("CompilerManagerTest");
+        Path stale = Files.createDirectory(parent.resolve("revapi-testjars-stale"));
+        Files.createFile(stale.resolve(".lock"));
+        Files.createFile(stale.resolve("compiled.jar"));
+
+        CompilerManager manager = new CompilerManager(parent);
+        try {
+            CompiledJar output = manager.createJar().classPathSources(null, "Root.java").build();
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (Files.exists(stale) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertFalse(Files.exists(stale));
+            assertTrue(Files.exists(output.jarPath()));
+        } finally {
+            manager.cleanUp();
+        }
+
+        awaitEmpty(parent);
+        Files.delete(parent);
+    }
+
+    @Test
+    void shouldEvictLeastRecentlyUsedJarsOverDiskBudget() throws Exception {
+        CompilerManager manager = new CompilerManager().diskBudget(1);
+        try {
+            CompiledJar a = manager.createJar().classPathSources(null, "Root.java").build();
+            Path aJar = a.jarPath();
+
+            CompiledJar b = manager.createJar().classPathSources("/deps/dep/", "Dep.java").build();
+            Path bJar = b.jarPath();
+
+            assertFalse(Files.exists(aJar));
+            assertTrue(Files.exists(bJar));
+
+            // accessing the evicted jar rebuilds it and evicts the other one
+            assertTrue(Files.exists(a.jarPath()));
+            try (JarFile jf = new JarFile(a.jarFile())) {
+                assertNotNull(jf.getJarEntry("Root.class"));
+            }
+            assertFalse(Files.exists(bJar));
+
+            // analyzed jars are pinned
+            assertNotNull(b.analyze().elements().getTypeElement("Dep"));
+            manager.createJar().classPathSources("/deps/main/", "Main.java").dependencies(b.jarPath()).build();
+            assertTrue(Files.exists(bJar));
+            assertFalse(Files.exists(aJar));
+        } finally {
+            manager.cleanUp();
+        }
+    }
+
+    @Test
+    void shouldMaterializeWholeClasspathOverDiskBudget() throws Exception {
+        CompilerManager manager = new CompilerManager().diskBudget(1);
+        try {
+            CompiledJar dep = manager.createJar().classPathSources("/deps/dep/", "Dep.java").build();
+            CompiledJar root = manager.createJar().classPathSources(null, "Root.java").build();
+            CompiledJar main = manager.createJar().classPathSources("/deps/main/", "Main.java")
+                    .dependencies(dep.jarPath(), root.jarPath()).build();
+
+            // rebuilding one of the dependencies must not evict the other one
+            for (Path p : main.classpathPaths()) {
+                assertTrue(Files.exists(p));
+            }
+        } finally {
+            manager.cleanUp();
+        }
+    }
+
+    @Test
+    void shouldIgnoreMalformedDiskBudget() throws Exception {
+        System.setProperty(CompilerManager.DISK_BUDGET_PROPERTY, "lots");
+        CompilerManager manager;
+        try {
+            manager = new CompilerManager();
+        } finally {
+            System.clearProperty(CompilerManager.DISK_BUDGET_PROPERTY);
+        }
+
+        try {
+            CompiledJar a = manager.createJar().classPathSources(null, "Root.java").build();
+            manager.createJar().classPathSources("/deps/dep/", "Dep.java").build();
+            assertTrue(Files.exists(a.jarPath()));
+        } finally {
+            manager.cleanUp();
+        }
+    }
+
+    @Test
+    void shouldIgnoreMalformedEnvironmentBudget() throws Exception {
+        System.setProperty(CompilerManager.ENVIRONMENT_BUDGET_PROPERTY, "few");
+        CompilerManager manager;
+        try {
+            manager = new CompilerManager();
+        } finally {
+            System.clearProperty(CompilerManager.ENVIRONMENT_BUDGET_PROPERTY);
+        }
+
+        try {
+            CompiledJar.Environment a = manager.createJar().classPathSources(null, "Root.java").build().analyze();
+            manager.createJar().classPathSources("/deps/dep/", "Dep.java").build().analyze();
+            assertFalse(a.isClosed());
+        } finally {
+            manager.cleanUp();
+        }
+    }
+
+    @Test
+    void shouldReleaseEntriesOfEvictedJars() throws Exception {
+        CompilerManager manager = new CompilerManager().diskBudget(1);
+        try {
+            CompiledJar a = manager.createJar().classPathSources(null, "Root.java").build();
+            JarEntries entries = a.entries();
+            assertSame(entries, a.entries());
+
+            manager.createJar().classPathSources("/deps/dep/", "Dep.java").build();
+
+            JarEntries reread = a.entries();
+            assertNotSame(entries, reread);
+            assertNotNull(reread.entry("Root.class"));
+        } finally {
+            manager.cleanUp();
+        }
+    }
+
+    @Test
+    void shouldReleaseEntriesOfExternalJars() throws Exception {
+        CompilerManager manager = new CompilerManager();
+        Path external = Files.createTempFile("CompilerManagerTest", ".jar");
+        try {
+            Files.copy(manager.createJar().classPathSources(null, "Root.java").build().jarPath(), external,
+                    StandardCopyOption.REPLACE_EXISTING);
+
+            CompiledJar jar = manager.jarFrom(external);
+            JarEntries entries = jar.entries();
+            assertSame(entries, jar.entries());
+
+            jar.close();
+            JarEntries reread = jar.entries();
+            assertNotSame(entries, reread);
+            assertNotNull(reread.entry("Root.class"));
+
+            manager.cleanUp();
+            assertNotSame(reread, jar.entries());
+        } finally {
+            manager.cleanUp();
+            Files.delete(external);
+        }
+    }
+
+    @Test
+    void shouldBeSafeForConcurrentUse() throws Exception {
+        Path parent = Files.createTempDirectory("CompilerManagerTest");
+        CompilerManager manager = new CompilerManager(parent).diskBudget(4096);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CompiledJar dep = manager.createJar().classPathSources("/deps/dep/", "Dep.java").build();
+
+            // builds, evictions and probes running concurrently
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < 64; ++i) {
+                int task = i;
+                results.add(executor.submit(() -> {
+                    CompiledJar jar = manager.createJar().classPathSources("/deps/main/", "Main.java")
+                            .dependencies(dep.jarPath()).build();
+
+                    // analysis pins the jar, so that the files can't be evicted by the other threads while we look
+                    // at them
+                    if (task % 4 == 0) {
+                        CompiledJar.Environment env = jar.analyze();
+                        assertNotNull(env.elements().getTypeElement("Main"));
+                        try (JarFile jf = new JarFile(jar.jarFile())) {
+                            assertNotNull(jf.getJarEntry("Main.class"));
+                        }
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : results) {
+                f.get(2, TimeUnit.MINUTES);
+            }
+
+            // clean ups running concurrently with builds
+            results.clear();
+            for (int i = 0; i < 64; ++i) {
+                int task = i;
+                results.add(executor.submit(() -> {
+                    if (task % 8 == 7) {
+                        manager.cleanUp();
+                    } else {
+                        manager.createJar().classPathSources(null, "Root.java").build().analyze();
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : results) {
+                f.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+            manager.cleanUp();
+        }
+
+        awaitEmpty(parent);
+        Files.delete(parent);
+    }
+
+    @Test
+    void shouldShareCompileRootBetweenSharedManagers() throws Exception {
+        Path sharedRoot;
+        try (CompilerManager first = CompilerManager.shared(); CompilerManager second = CompilerManager.shared()) {
+            CompiledJar a = first.createJar().classPathSources(null, "Root.java").build();
+            CompiledJar b = second.createJar().classPathSources(null, "Root.java").build();
+
+            // <shared root>/<scope>/<jar>/compiled.jar
+            sharedRoot = a.jarPath().getParent().getParent().getParent();
+            assertEquals(sharedRoot, b.jarPath().getParent().getParent().getParent());
+            assertNotEquals(a.jarPath().getParent().getParent(), b.jarPath().getParent().getParent());
+
+            first.cleanUp();
+            assertFalse(Files.exists(a.jarPath()));
+            assertTrue(Files.exists(b.jarPath()));
+        }
+
+        assertFalse(Files.exists(sharedRoot));
+    }
+
+    private static void awaitEmpty(Path dir) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Stream<Path> files = Files.list(dir)) {
+                if (!files.findAny().isPresent()) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+
+        fail("Directory " + dir + " not empty.");
+    }
 }
@@ -67,7 +67,7 @@ import org.revapi.testjars.DependencyResolver;
  * @since 0.1.0
  */
 public class Jar implements TestRule {
-    private final CompilerManager compilerManager = new CompilerManager();
+    private final CompilerManager compilerManager = CompilerManager.shared();
 
     /**
      * Applies a jar rule to a test method. Don't call directly but instead let JUnit handle it.
@@ -25,7 +25,7 @@ import java.lang.annotation.Target;
  * A wrapper for {@link JarResources}
  */
 @Retention(RetentionPolicy.RUNTIME)
-@Target(ElementType.FIELD)
+@Target({ ElementType.FIELD, ElementType.PARAMETER })
 public @interface AllJarResources {
     JarResources[] value();
 }
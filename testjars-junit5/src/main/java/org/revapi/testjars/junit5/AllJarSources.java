@@ -25,7 +25,7 @@ import java.lang.annotation.Target;
  * A wrapper for {@link JarSources}
  */
 @Retention(RetentionPolicy.RUNTIME)
-@Target(ElementType.FIELD)
+@Target({ ElementType.FIELD, ElementType.PARAMETER })
 public @interface AllJarSources {
     JarSources[] value();
 }
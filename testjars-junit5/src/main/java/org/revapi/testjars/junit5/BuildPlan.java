@@ -0,0 +1,367 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars.junit5;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.stream.Collectors.toList;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.revapi.testjars.CompiledJar;
+import org.revapi.testjars.DependencyResolver;
+
+/**
+ * The immutable description of how to build the jars of a test class. It is computed once per test class and contains
+ * everything {@link CompiledJarExtension} needs to know about the annotated fields, so that the fields don't need to be
+ * inspected again for every test instance. The parameters of the test methods and constructors are inspected once
+ * they're first resolved.
+ * <p>
+ * The plan includes the fields inherited from the superclasses. The plan of a non-static inner (i.e. {@code @Nested})
+ * class links to the plan of its enclosing class so that the jars can depend on the named jars of the enclosing
+ * classes.
+ */
+final class BuildPlan {
+    private static final ClassValue<BuildPlan> PLANS = new ClassValue<BuildPlan>() {
+        @Override
+        protected BuildPlan computeValue(Class<?> type) {
+            return new BuildPlan(type);
+        }
+    };
+
+    private final Class<?> testClass;
+    @Nullable
+    private final BuildPlan enclosing;
+    private final List<Step> steps;
+    private final Map<String, Step> stepsByName;
+    private final Map<String, Set<String>> depsTransitiveClosure;
+    private final Map<Parameter, Step> parameterSteps = new ConcurrentHashMap<>();
+
+    private BuildPlan(Class<?> testClass) {
+        this.testClass = testClass;
+        this.enclosing = testClass.getEnclosingClass() != null && !Modifier.isStatic(testClass.getModifiers())
+                ? of(testClass.getEnclosingClass()) : null;
+
+        List<Class<?>> hierarchy = new ArrayList<>();
+        for (Class<?> c = testClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.add(0, c);
+        }
+
+        List<Field> fields = hierarchy.stream().flatMap(c -> Stream.of(c.getDeclaredFields()))
+                .filter(f -> !Modifier.isStatic(f.getModifiers())).filter(f -> hasCompatibleType(f.getType()))
+                .filter(BuildPlan::hasJarSources).collect(toList());
+
+        Map<String, Field> fieldsByName = new HashMap<>();
+        for (Field f : fields) {
+            f.setAccessible(true);
+            String name = Step.name(f.getAnnotationsByType(JarSources.class));
+            if (name != null && fieldsByName.put(name, f) != null) {
+                throw new IllegalArgumentException("Name '" + name + "' declared on multiple @JarSources.");
+            }
+        }
+
+        // the post-order of the DFS is a topological order of the steps
+        Map<Field, Step> stepsByField = new HashMap<>();
+        List<Step> order = new ArrayList<>(fields.size());
+        Set<Field> visiting = new HashSet<>();
+        for (Field f : fields) {
+            step(f, fieldsByName, stepsByField, visiting, order);
+        }
+
+        Map<String, Step> stepsByName = new HashMap<>();
+        for (Step step : order) {
+            if (step.name != null) {
+                stepsByName.put(step.name, step);
+            }
+        }
+        this.stepsByName = unmodifiableMap(stepsByName);
+
+        Map<String, Set<String>> namedClosure = new HashMap<>();
+        if (enclosing != null) {
+            namedClosure.putAll(enclosing.depsTransitiveClosure);
+        }
+        for (Step step : order) {
+            if (step.name != null) {
+                Set<String> names = new HashSet<>();
+                for (Step d : step.closure) {
+                    if (d.name != null) {
+                        names.add(d.name);
+                    }
+                }
+                namedClosure.put(step.name, unmodifiableSet(names));
+            }
+        }
+
+        this.steps = unmodifiableList(order);
+        this.depsTransitiveClosure = unmodifiableMap(namedClosure);
+    }
+
+    static BuildPlan of(Class<?> testClass) {
+        return PLANS.get(testClass);
+    }
+
+    Class<?> testClass() {
+        return testClass;
+    }
+
+    /**
+     * @return the plan of the enclosing class of a {@code @Nested} test class or null if the test class is not nested
+     */
+    @Nullable
+    BuildPlan enclosing() {
+        return enclosing;
+    }
+
+    /**
+     * @return the steps in the order in which they can be executed, i.e. each step comes after all the steps it depends
+     *         on
+     */
+    List<Step> steps() {
+        return steps;
+    }
+
+    /**
+     * @return the step building the jar for the provided test method or constructor parameter. Unlike the fields, the
+     *         parameters cannot be depended on by other jars, but can depend on the named jars of the fields.
+     */
+    Step step(Parameter parameter) {
+        return parameterSteps.computeIfAbsent(parameter, p -> new Step(p, p.getType(), this::stepByName));
+    }
+
+    static boolean isApplicable(Parameter parameter) {
+        return hasCompatibleType(parameter.getType()) && hasJarSources(parameter);
+    }
+
+    /**
+     * @return the names of all the jars the named jars depend on, directly or transitively
+     */
+    Map<String, Set<String>> depsTransitiveClosure() {
+        return depsTransitiveClosure;
+    }
+
+    /**
+     * @return the step of the field declaring the jar of the provided name in this or the enclosing classes
+     */
+    @Nullable
+    private Step stepByName(String name) {
+        Step ret = stepsByName.get(name);
+        return ret == null && enclosing != null ? enclosing.stepByName(name) : ret;
+    }
+
+    /**
+     * A memoized DFS creating the step of the field after the steps of all the fields it depends on. The steps of the
+     * enclosing classes already exist.
+     */
+    private Step step(Field field, Map<String, Field> fieldsByName, Map<Field, Step> stepsByField, Set<Field> visiting,
+            List<Step> order) {
+        Step ret = stepsByField.get(field);
+        if (ret != null) {
+            return ret;
+        }
+
+        if (!visiting.add(field)) {
+            throw new IllegalArgumentException("Cyclic dependencies.");
+        }
+
+        ret = new Step(field, field.getType(), name -> {
+            Field dep = fieldsByName.get(name);
+            if (dep != null) {
+                return step(dep, fieldsByName, stepsByField, visiting, order);
+            }
+            return enclosing == null ? null : enclosing.stepByName(name);
+        });
+
+        visiting.remove(field);
+        stepsByField.put(field, ret);
+        order.add(ret);
+
+        return ret;
+    }
+
+    private static boolean hasCompatibleType(Class<?> type) {
+        return CompiledJar.Environment.class.isAssignableFrom(type) || CompiledJar.class.isAssignableFrom(type);
+    }
+
+    private static boolean hasJarSources(AnnotatedElement element) {
+        return element.getAnnotation(AllJarSources.class) != null || element.getAnnotation(JarSources.class) != null;
+    }
+
+    /**
+     * Building a single jar and injecting it into a field or a parameter.
+     */
+    static final class Step {
+        final AnnotatedElement element;
+        final boolean analyze;
+        final String name;
+        final JarSources[] sources;
+        final JarResources[] resources;
+
+        /**
+         * The identifiers of all the dependencies of the jar in the declaration order.
+         */
+        final List<String> dependencyIds;
+
+        /**
+         * The identifiers of the dependencies on the other jars of the test class.
+         */
+        final Set<String> annotatedDependencies;
+
+        /**
+         * The resolvers of the dependencies not in {@link #annotatedDependencies}. The resolvers are instantiated anew
+         * for each build of the jar, see {@link #newResolvers()}.
+         */
+        final Map<String, Class<? extends DependencyResolver>> resolvers;
+
+        /**
+         * The annotations declaring the jar. The steps with equal declarations build equal jars.
+         */
+        final List<Annotation> declaration;
+
+        /**
+         * The steps that need to be executed before this one. The parameters depend on the fields the same way, but
+         * their jars are built on demand.
+         */
+        final Set<Step> dependencies;
+
+        /**
+         * The steps this one depends on, directly or transitively.
+         */
+        final Set<Step> closure;
+
+        /**
+         * @return the identity of the jar built by this step. The steps with equal keys build equal jars.
+         */
+        List<Object> key() {
+            return Arrays.asList(declaration, dependencies);
+        }
+
+        /**
+         * @param stepByName
+         *            the steps of the named jars this one depends on, created before this one. Returns null for the
+         *            names that are not declared.
+         */
+        private Step(AnnotatedElement element, Class<?> type, Function<String, Step> stepByName) {
+            this.element = element;
+            this.analyze = CompiledJar.Environment.class.isAssignableFrom(type);
+            this.sources = element.getAnnotationsByType(JarSources.class);
+            this.resources = element.getAnnotationsByType(JarResources.class);
+            Dependencies[] deps = element.getAnnotationsByType(Dependencies.class);
+
+            this.name = name(sources);
+
+            Map<String, Class<? extends DependencyResolver>> resolvers = new LinkedHashMap<>();
+            Set<String> annotatedDependencies = new HashSet<>();
+            for (Dependencies d : deps) {
+                Class<? extends DependencyResolver> dr = AnnotatedDependencyResolver.class.equals(d.resolver()) ? null
+                        : d.resolver();
+
+                for (String id : d.value()) {
+                    if (dr == null) {
+                        annotatedDependencies.add(id);
+                    } else {
+                        annotatedDependencies.remove(id);
+                    }
+                    resolvers.put(id, dr);
+                }
+            }
+
+            this.dependencyIds = unmodifiableList(new ArrayList<>(resolvers.keySet()));
+            resolvers.values().removeIf(r -> r == null);
+            this.resolvers = unmodifiableMap(resolvers);
+            this.annotatedDependencies = annotatedDependencies.isEmpty() ? emptySet()
+                    : unmodifiableSet(annotatedDependencies);
+
+            List<Annotation> declaration = new ArrayList<>(sources.length + resources.length + deps.length);
+            declaration.addAll(Arrays.asList(sources));
+            declaration.addAll(Arrays.asList(resources));
+            declaration.addAll(Arrays.asList(deps));
+            this.declaration = unmodifiableList(declaration);
+
+            Set<Step> dependencies = new LinkedHashSet<>();
+            Set<Step> closure = new HashSet<>();
+            for (String id : annotatedDependencies) {
+                Step dep = stepByName.apply(id);
+                if (dep != null) {
+                    dependencies.add(dep);
+                    closure.add(dep);
+                    closure.addAll(dep.closure);
+                }
+            }
+            this.dependencies = unmodifiableSet(dependencies);
+            this.closure = unmodifiableSet(closure);
+        }
+
+        /**
+         * Instantiates the resolvers of the dependencies not in {@link #annotatedDependencies}. A new instance of each
+         * resolver is created for every build, so that the resolvers don't need to be thread-safe even though the jars
+         * are built concurrently.
+         */
+        Map<String, DependencyResolver> newResolvers() {
+            Map<Class<? extends DependencyResolver>, DependencyResolver> instances = new HashMap<>();
+            Map<String, DependencyResolver> ret = new HashMap<>();
+            try {
+                for (Map.Entry<String, Class<? extends DependencyResolver>> e : resolvers.entrySet()) {
+                    DependencyResolver dr = instances.get(e.getValue());
+                    if (dr == null) {
+                        dr = e.getValue().newInstance();
+                        instances.put(e.getValue(), dr);
+                    }
+                    ret.put(e.getKey(), dr);
+                }
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalArgumentException("Failed to instantiate the dependency resolver for " + element, e);
+            }
+
+            return ret;
+        }
+
+        @Nullable
+        private static String name(JarSources[] sources) {
+            String name = null;
+            for (JarSources s : sources) {
+                if (!s.name().isEmpty()) {
+                    if (name != null) {
+                        throw new IllegalArgumentException();
+                    } else {
+                        name = s.name();
+                    }
+                }
+            }
+            return name;
+        }
+    }
+}
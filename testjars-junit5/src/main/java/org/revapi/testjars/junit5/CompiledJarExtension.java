@@ -16,26 +16,28 @@
  */
 package org.revapi.testjars.junit5;
 
-import static java.util.Collections.emptySet;
-import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toMap;
-import static java.util.stream.Collectors.toSet;
-
 import java.io.File;
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.stream.Stream;
 
 import org.junit.jupiter.api.extension.AfterAllCallback;
 import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ParameterContext;
+import org.junit.jupiter.api.extension.ParameterResolutionException;
+import org.junit.jupiter.api.extension.ParameterResolver;
 import org.junit.jupiter.api.extension.TestInstancePostProcessor;
 import org.revapi.testjars.CompiledJar;
 import org.revapi.testjars.CompilerManager;
@@ -49,205 +51,334 @@ import org.revapi.testjars.DependencyResolver;
  * Each field with type {@link CompiledJar} is initialized to an instance containing the compilation results of the
  * sources and resources specified by the {@link JarSources} and {@link JarResources} annotations on the field. The
  * field can alternatively also have type {@link CompiledJar.Environment}.
+ * <p>
+ * The jars are compiled once per test class and the same instances are injected into all the instances of the test
+ * class. Use {@link FreshJars} on the test class to compile the jars for each test instance.
+ * <p>
+ * The parameters of the test methods and constructors can be annotated the same way as the fields. Their jars are only
+ * compiled once a test with such a parameter is executed. The parameters with the same annotations get the same jar,
+ * which is the jar of the field with the same annotations, if there is one.
  */
-public final class CompiledJarExtension implements TestInstancePostProcessor, AfterAllCallback {
-    private final CompilerManager compilerManager = new CompilerManager();
+public final class CompiledJarExtension implements TestInstancePostProcessor, ParameterResolver, AfterAllCallback {
+    private static final ExtensionContext.Namespace NAMESPACE = ExtensionContext.Namespace
+            .create(CompiledJarExtension.class);
 
     @Override
     public void afterAll(ExtensionContext context) {
-        compilerManager.cleanUp();
+        // the jars of the enclosing classes of a @Nested class are owned and cleaned up by their own contexts
+        ClassCompiler compiler = context.getStore(NAMESPACE).remove(ClassCompiler.key(context.getRequiredTestClass()),
+                ClassCompiler.class);
+        if (compiler != null) {
+            compiler.close();
+        }
     }
 
     @Override
     public void postProcessTestInstance(Object testInstance, ExtensionContext context) throws Exception {
         Class<?> testClass = context.getRequiredTestClass();
-        List<Field> eligibleFields = findEligibleFields(testClass);
-        Map<String, Set<String>> depsTransitiveClosure = sortByDependenciesAndReturnTransitiveClosureOfDeps(
-                eligibleFields)
-                        .entrySet().stream().filter(e -> getJarName(e.getKey()) != null)
-                        .collect(Collectors.toMap(e -> getJarName(e.getKey()),
-                                e -> e.getValue().stream().map(CompiledJarExtension::getJarName)
-                                        .filter(Objects::nonNull).collect(Collectors.toSet())));
+        BuildPlan plan = BuildPlan.of(testClass);
 
-        Map<String, CompiledJar> namedResults = new HashMap<>();
+        Map<BuildPlan.Step, CompiledJar> jars = testClass.isAnnotationPresent(FreshJars.class)
+                ? buildJars(compiler(context).compilerManager, plan, enclosingJars(plan, context))
+                : classJars(plan, context);
 
-        for (Field f : eligibleFields) {
-            if (!Modifier.isStatic(f.getModifiers())) {
-                boolean isEnv = CompiledJar.Environment.class.isAssignableFrom(f.getType());
-                if (!isEnv && !CompiledJar.class.isAssignableFrom(f.getType())) {
-                    continue;
-                }
-
-                JarSources[] sources = f.getAnnotationsByType(JarSources.class);
-                if (sources.length == 0) {
-                    continue;
-                }
+        for (Map.Entry<BuildPlan.Step, CompiledJar> e : jars.entrySet()) {
+            BuildPlan.Step step = e.getKey();
+            CompiledJar compiledJar = e.getValue();
 
-                Dependencies[] deps = f.getAnnotationsByType(Dependencies.class);
-                Map<String, DependencyResolver> resolvers = new HashMap<>();
-                for (Dependencies d : deps) {
-                    DependencyResolver dr;
-                    if (AnnotatedDependencyResolver.class.equals(d.resolver())) {
-                        dr = new AnnotatedDependencyResolver(namedResults, depsTransitiveClosure);
-                    } else {
-                        dr = d.resolver().newInstance();
-                    }
+            ((Field) step.element).set(testInstance, step.analyze ? compiledJar.analyze() : compiledJar);
+        }
+    }
 
-                    for (String id : d.value()) {
-                        resolvers.put(id, dr);
-                    }
-                }
+    @Override
+    public boolean supportsParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        return BuildPlan.isApplicable(parameterContext.getParameter());
+    }
 
-                CompilerManager.JarBuilder bld = compilerManager
-                        .createJar(id -> resolvers.getOrDefault(id, CluelessDependencyResolver.INSTANCE).resolve(id));
+    @Override
+    public Object resolveParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        Class<?> testClass = extensionContext.getRequiredTestClass();
+        BuildPlan plan = BuildPlan.of(testClass);
+        BuildPlan.Step step = plan.step(parameterContext.getParameter());
+
+        CompiledJar compiledJar;
+        if (testClass.isAnnotationPresent(FreshJars.class)) {
+            compiledJar = buildParameterJar(step, plan, extensionContext);
+        } else {
+            // the parameters declared the same way share the jar
+            compiledJar = classContext(extensionContext).getStore(NAMESPACE).getOrComputeIfAbsent(step.key(),
+                    __ -> parameterJar(step, plan, extensionContext), CompiledJar.class);
+        }
 
-                String name = null;
-                for (JarSources src : sources) {
-                    if (!src.root().isEmpty() && src.sources().length != 0) {
-                        bld.classPathSources(src.root(), src.sources());
-                    }
+        return step.analyze ? compiledJar.analyze() : compiledJar;
+    }
 
-                    if (!src.fileRoot().isEmpty() && src.fileSources().length != 0) {
-                        bld.fileSources(new File(src.fileRoot()),
-                                Stream.of(src.fileSources()).map(File::new).toArray(File[]::new));
+    /**
+     * @return the jars of the fields of the test class, compiled once and shared by all the instances of the test class
+     */
+    private Map<BuildPlan.Step, CompiledJar> classJars(BuildPlan plan, ExtensionContext context) {
+        Map<BuildPlan.Step, CompiledJar> enclosingJars = enclosingJars(plan, context);
+        ClassCompiler compiler = compiler(context);
+
+        // the class context outlives the test instances under the per-method lifecycle
+        @SuppressWarnings("unchecked")
+        Map<BuildPlan.Step, CompiledJar> ret = classContext(context).getStore(NAMESPACE)
+                .getOrComputeIfAbsent(plan.testClass(), c -> {
+                    try {
+                        CompiledJarPrebuilder.Prebuilt prebuilt = enclosingJars.isEmpty()
+                                ? CompiledJarPrebuilder.take(plan.testClass()) : null;
+                        if (prebuilt != null) {
+                            compiler.prebuiltManagers.add(prebuilt.compilerManager);
+                            Map<BuildPlan.Step, CompiledJar> jars = prebuilt.join();
+                            if (jars != null) {
+                                return jars;
+                            }
+                        }
+
+                        return buildJars(compiler.compilerManager, plan, enclosingJars);
+                    } catch (CompletionException e) {
+                        throw new IllegalStateException("Failed to compile the jars of " + c, e.getCause());
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Failed to compile the jars of " + c, e);
                     }
+                }, Map.class);
 
-                    if (resolvers.size() == 1) {
-                        bld.dependencies(resolvers.keySet().iterator().next());
-                    } else if (resolvers.size() > 1) {
-                        List<String> ds = new ArrayList<>(resolvers.keySet());
-                        String first = ds.remove(0);
-                        String[] rest = ds.toArray(new String[0]);
+        return ret;
+    }
 
-                        bld.dependencies(first, rest);
-                    }
+    /**
+     * @return the jars of the fields of the enclosing classes of a {@code @Nested} test class, starting with the
+     *         inner-most enclosing class
+     */
+    private Map<BuildPlan.Step, CompiledJar> enclosingJars(BuildPlan plan, ExtensionContext context) {
+        Map<BuildPlan.Step, CompiledJar> ret = new LinkedHashMap<>();
+        ExtensionContext ctx = classContext(context);
+        for (BuildPlan enclosing = plan.enclosing(); enclosing != null; enclosing = enclosing.enclosing()) {
+            Optional<ExtensionContext> parent = ctx.getParent();
+            if (!parent.isPresent() || parent.get().getTestClass().orElse(null) != enclosing.testClass()) {
+                break;
+            }
 
-                    if (src.name().length() > 0) {
-                        name = src.name();
-                    }
-                }
+            ctx = parent.get();
+            ret.putAll(classJars(enclosing, ctx));
+        }
 
-                JarResources[] resources = f.getAnnotationsByType(JarResources.class);
-                for (JarResources rsc : resources) {
-                    if (!rsc.root().isEmpty() && rsc.resources().length != 0) {
-                        bld.classPathResources(rsc.root(), rsc.resources());
-                    }
+        return ret;
+    }
 
-                    if (!rsc.fileRoot().isEmpty() && rsc.fileResources().length != 0) {
-                        bld.fileResources(new File(rsc.fileRoot()),
-                                Stream.of(rsc.fileResources()).map(File::new).toArray(File[]::new));
-                    }
+    /**
+     * @return the jar of a field of the test class or its enclosing classes declared the same way as the parameter or
+     *         the newly compiled jar of the parameter if there is no such field
+     */
+    private CompiledJar parameterJar(BuildPlan.Step step, BuildPlan plan, ExtensionContext context) {
+        List<Object> key = step.key();
+        for (Map<BuildPlan.Step, CompiledJar> jars : Arrays.asList(classJars(plan, context),
+                enclosingJars(plan, context))) {
+            for (Map.Entry<BuildPlan.Step, CompiledJar> e : jars.entrySet()) {
+                if (e.getKey().key().equals(key)) {
+                    return e.getValue();
                 }
+            }
+        }
 
-                CompiledJar compiledJar = bld.build();
+        return buildParameterJar(step, plan, context);
+    }
 
-                if (name != null) {
-                    namedResults.put(name, compiledJar);
-                }
+    /**
+     * Compiles the jar of a parameter. The parameter can depend on the named jars of the fields of the test class and
+     * its enclosing classes, in which case those are compiled, too, unless already available.
+     */
+    private CompiledJar buildParameterJar(BuildPlan.Step step, BuildPlan plan, ExtensionContext context) {
+        Map<String, CompiledJar> namedResults = new HashMap<>();
+        if (!step.annotatedDependencies.isEmpty()) {
+            addNamed(classJars(plan, context), namedResults);
+            addNamed(enclosingJars(plan, context), namedResults);
+        }
 
-                f.setAccessible(true);
-                if (isEnv) {
-                    f.set(testInstance, compiledJar.analyze());
-                } else {
-                    f.set(testInstance, compiledJar);
-                }
-            }
+        try {
+            return buildJar(compiler(context).compilerManager, step, namedResults, plan.depsTransitiveClosure());
+        } catch (Exception e) {
+            throw new ParameterResolutionException("Failed to compile the jar of " + step.element, e);
         }
     }
 
-    private static Map<Field, Set<Field>> sortByDependenciesAndReturnTransitiveClosureOfDeps(List<Field> jarFields) {
-        Map<Field, Set<Field>> deps = determineFieldDependencies(jarFields);
-
-        transitiveClosure(deps);
-        jarFields.sort((a, b) -> {
-            if (deps.getOrDefault(a, emptySet()).contains(b)) {
-                return 1;
-            } else if (deps.getOrDefault(b, emptySet()).contains(a)) {
-                return -1;
-            } else {
-                return 0;
-            }
-        });
+    /**
+     * @return the context of the test class, i.e. the context that lives for as long as all the instances of the test
+     *         class
+     */
+    private static ExtensionContext classContext(ExtensionContext context) {
+        ExtensionContext ret = context;
+        while (ret.getTestMethod().isPresent() && ret.getParent().isPresent()) {
+            ret = ret.getParent().get();
+        }
 
-        return deps;
+        return ret;
     }
 
-    private static void transitiveClosure(Map<Field, Set<Field>> firstOrderDeps) {
-        for (Field f : firstOrderDeps.keySet()) {
-            transitiveClosure(f, new HashSet<>(), firstOrderDeps);
-        }
+    /**
+     * @return the compiler of the jars of the test class of the provided context
+     */
+    private static ClassCompiler compiler(ExtensionContext context) {
+        // keyed by the class so that a @Nested class doesn't find the compiler of its enclosing class in the parent
+        // store
+        return classContext(context).getStore(NAMESPACE).getOrComputeIfAbsent(
+                ClassCompiler.key(context.getRequiredTestClass()), __ -> new ClassCompiler(), ClassCompiler.class);
     }
 
-    private static void transitiveClosure(Field toUpdate, Set<Field> processed, Map<Field, Set<Field>> allDeps) {
-        if (processed.contains(toUpdate)) {
-            throw new IllegalArgumentException("Cyclic dependencies.");
+    private static void addNamed(Map<BuildPlan.Step, CompiledJar> jars, Map<String, CompiledJar> namedResults) {
+        for (Map.Entry<BuildPlan.Step, CompiledJar> e : jars.entrySet()) {
+            if (e.getKey().name != null) {
+                namedResults.putIfAbsent(e.getKey().name, e.getValue());
+            }
         }
+    }
 
-        processed.add(toUpdate);
+    /**
+     * Compiles the jars of the provided build plan. The jars that don't depend on each other are compiled concurrently,
+     * each jar is compiled as soon as all the jars it depends on are compiled. The jars are compiled in the thread pool
+     * shared by all the compiler managers, so the number of the compiler threads doesn't grow with the number of the
+     * test classes compiling their jars at the same time.
+     * <p>
+     * A jar declared the same way as an already available jar (i.e. a jar of an enclosing class) or as a jar of a field
+     * declared in another class of the hierarchy (i.e. an inherited field) is compiled only once. The equally declared
+     * fields of a single class get separate jars.
+     *
+     * @param available
+     *            the already compiled jars the jars of the plan can depend on or reuse
+     */
+    static Map<BuildPlan.Step, CompiledJar> buildJars(CompilerManager compilerManager, BuildPlan plan,
+            Map<BuildPlan.Step, CompiledJar> available) throws Exception {
+        List<BuildPlan.Step> steps = plan.steps();
+        Map<String, CompiledJar> namedResults = new ConcurrentHashMap<>();
+        addNamed(available, namedResults);
+
+        // the builds by the declaration and the class declaring the field
+        Map<List<Object>, Map<Class<?>, CompletableFuture<CompiledJar>>> byDeclaration = new HashMap<>();
+        available.forEach((step, jar) -> byDeclaration.computeIfAbsent(step.key(), __ -> new HashMap<>())
+                .putIfAbsent(declaringClass(step), CompletableFuture.completedFuture(jar)));
+
+        Executor workers = CompilerManager.executor();
+
+        Map<BuildPlan.Step, CompletableFuture<CompiledJar>> builds = new LinkedHashMap<>();
+        for (BuildPlan.Step step : steps) {
+            Class<?> declaringClass = declaringClass(step);
+            Map<Class<?>, CompletableFuture<CompiledJar>> sameDeclaration = byDeclaration.computeIfAbsent(step.key(),
+                    __ -> new HashMap<>());
+            CompletableFuture<CompiledJar> build = sameDeclaration.entrySet().stream()
+                    .filter(e -> e.getKey() != declaringClass).map(Map.Entry::getValue).findFirst().orElse(null);
+            if (build == null) {
+                // the dependencies on the jars of the enclosing classes are already satisfied
+                CompletableFuture<?>[] prerequisites = step.dependencies.stream().map(builds::get)
+                        .filter(Objects::nonNull).toArray(CompletableFuture[]::new);
+
+                build = CompletableFuture.allOf(prerequisites).thenApplyAsync(__ -> {
+                    try {
+                        return buildJar(compilerManager, step, namedResults, plan.depsTransitiveClosure());
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, workers);
+                sameDeclaration.putIfAbsent(declaringClass, build);
+            }
 
-        Set<Field> deepDeps = new HashSet<>();
-        for (Field d : allDeps.getOrDefault(toUpdate, emptySet())) {
-            transitiveClosure(d, processed, allDeps);
-            deepDeps.addAll(allDeps.get(d));
+            builds.put(step, build);
         }
-        allDeps.put(toUpdate, deepDeps);
-    }
 
-    private static String getJarName(Field f) {
-        String name = null;
-        for (JarSources s : f.getAnnotationsByType(JarSources.class)) {
-            if (!s.name().isEmpty()) {
-                if (name != null) {
-                    throw new IllegalArgumentException();
+        Map<BuildPlan.Step, CompiledJar> ret = new LinkedHashMap<>();
+        for (Map.Entry<BuildPlan.Step, CompletableFuture<CompiledJar>> e : builds.entrySet()) {
+            try {
+                ret.put(e.getKey(), e.getValue().join());
+            } catch (CompletionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
                 } else {
-                    name = s.name();
+                    throw ex;
                 }
             }
         }
 
-        return name;
+        return ret;
     }
 
-    private static Map<Field, Set<Field>> determineFieldDependencies(List<Field> fields) {
-        Map<Field, Set<String>> depsByField = new HashMap<>();
-        Map<String, Field> names = new HashMap<>();
+    private static Class<?> declaringClass(BuildPlan.Step step) {
+        return ((Field) step.element).getDeclaringClass();
+    }
 
-        for (Field f : fields) {
-            String fName = getJarName(f);
-            if (fName != null) {
-                if (names.put(fName, f) != null) {
-                    throw new IllegalArgumentException("Name '" + fName + "' declared on multiple @JarSources.");
-                }
+    private static CompiledJar buildJar(CompilerManager compilerManager, BuildPlan.Step step,
+            Map<String, CompiledJar> namedResults, Map<String, Set<String>> depsTransitiveClosure) throws Exception {
+        DependencyResolver annotatedResolver = new AnnotatedDependencyResolver(namedResults, depsTransitiveClosure);
+        Map<String, DependencyResolver> resolvers = step.newResolvers();
+
+        CompilerManager.JarBuilder bld = compilerManager.createJar(id -> {
+            if (step.annotatedDependencies.contains(id)) {
+                return annotatedResolver.resolve(id);
+            } else {
+                return resolvers.getOrDefault(id, CluelessDependencyResolver.INSTANCE).resolve(id);
             }
+        });
 
-            Dependencies[] deps = f.getAnnotationsByType(Dependencies.class);
-            for (Dependencies da : deps) {
-                if (da.resolver() != AnnotatedDependencyResolver.class) {
-                    continue;
-                }
+        for (JarSources src : step.sources) {
+            if (!src.root().isEmpty() && src.sources().length != 0) {
+                bld.classPathSources(src.root(), src.sources());
+            }
 
-                for (String d : da.value()) {
-                    depsByField.computeIfAbsent(f, __ -> new HashSet<>()).add(d);
-                }
+            if (!src.fileRoot().isEmpty() && src.fileSources().length != 0) {
+                bld.fileSources(new File(src.fileRoot()),
+                        Stream.of(src.fileSources()).map(File::new).toArray(File[]::new));
+            }
+
+            if (step.dependencyIds.size() == 1) {
+                bld.dependencies(step.dependencyIds.get(0));
+            } else if (step.dependencyIds.size() > 1) {
+                bld.dependencies(step.dependencyIds.get(0),
+                        step.dependencyIds.subList(1, step.dependencyIds.size()).toArray(new String[0]));
             }
         }
 
-        return depsByField.entrySet().stream()
-                .collect(toMap(Map.Entry::getKey, e -> e.getValue().stream().map(names::get).collect(toSet())));
-    }
+        for (JarResources rsc : step.resources) {
+            if (!rsc.root().isEmpty() && rsc.resources().length != 0) {
+                bld.classPathResources(rsc.root(), rsc.resources());
+            }
 
-    private static List<Field> findEligibleFields(Class<?> testClass) {
-        return Stream.of(testClass.getDeclaredFields()).filter(f -> !Modifier.isStatic(f.getModifiers()))
-                .filter(CompiledJarExtension::hasCompatibleType).filter(CompiledJarExtension::hasJarSources)
-                .collect(toList());
-    }
+            if (!rsc.fileRoot().isEmpty() && rsc.fileResources().length != 0) {
+                bld.fileResources(new File(rsc.fileRoot()),
+                        Stream.of(rsc.fileResources()).map(File::new).toArray(File[]::new));
+            }
+        }
+
+        CompiledJar compiledJar = bld.build();
+
+        if (step.name != null) {
+            namedResults.put(step.name, compiledJar);
+        }
 
-    private static boolean hasCompatibleType(Field f) {
-        return CompiledJar.Environment.class.isAssignableFrom(f.getType())
-                || CompiledJar.class.isAssignableFrom(f.getType());
+        return compiledJar;
     }
 
-    private static boolean hasJarSources(Field f) {
-        return f.getAnnotation(AllJarSources.class) != null || f.getAnnotation(JarSources.class) != null;
+    /**
+     * The compiler of the jars of a single test class. It is kept in the store of the context of the test class, so
+     * that the jars are cleaned up together with the context, independently of the jars of the enclosing classes.
+     */
+    private static final class ClassCompiler implements ExtensionContext.Store.CloseableResource {
+        final CompilerManager compilerManager = CompilerManager.shared();
+
+        /**
+         * The compiler managers of the jars prebuilt by {@link CompiledJarPrebuilder} and taken over for the test
+         * class.
+         */
+        final List<CompilerManager> prebuiltManagers = new CopyOnWriteArrayList<>();
+
+        static List<Object> key(Class<?> testClass) {
+            return Arrays.asList(ClassCompiler.class, testClass);
+        }
+
+        @Override
+        public void close() {
+            compilerManager.cleanUp();
+            prebuiltManagers.forEach(CompilerManager::cleanUp);
+        }
     }
 }
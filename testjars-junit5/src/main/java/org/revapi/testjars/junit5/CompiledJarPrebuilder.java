@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars.junit5;
+
+import static java.util.Collections.emptyMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.commons.support.AnnotationSupport;
+import org.junit.platform.engine.TestSource;
+import org.junit.platform.engine.support.descriptor.ClassSource;
+import org.junit.platform.launcher.TestExecutionListener;
+import org.junit.platform.launcher.TestIdentifier;
+import org.junit.platform.launcher.TestPlan;
+import org.revapi.testjars.CompiledJar;
+import org.revapi.testjars.CompilerManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JUnit Platform listener that starts compiling the jars of the test classes using the {@link CompiledJarExtension}
+ * as soon as the tests are discovered. The classes are processed in the background one by one in the order in which
+ * they are going to be executed, so that their jars are ready (or at least being compiled) by the time the extension
+ * needs them.
+ * <p>
+ * The listener is registered automatically but does nothing unless the {@value #PREBUILD_PROPERTY} system property is
+ * set to true. Only the jars of the fields of the top-level test classes not annotated with {@link FreshJars} are
+ * prebuilt. The jars of the classes that end up not being executed are deleted once the test plan finishes.
+ */
+public final class CompiledJarPrebuilder implements TestExecutionListener {
+    private static final Logger LOG = LoggerFactory.getLogger(CompiledJarPrebuilder.class);
+
+    /**
+     * The system property enabling the prebuilding of the jars.
+     */
+    public static final String PREBUILD_PROPERTY = "revapi.testjars.prebuild";
+
+    private static final Map<Class<?>, Prebuilt> PREBUILT = new ConcurrentHashMap<>();
+
+    /**
+     * The jars prebuilt by this listener. Some of them may have been taken over by the extension already.
+     */
+    private final Map<Class<?>, Prebuilt> started = new HashMap<>();
+
+    @Nullable
+    private ExecutorService builder;
+
+    /**
+     * Takes over the jars prebuilt for the provided test class. The caller becomes responsible for cleaning up the
+     * compiler manager of the jars.
+     *
+     * @return the prebuilt jars or null if the jars of the class are not being prebuilt
+     */
+    @Nullable
+    static Prebuilt take(Class<?> testClass) {
+        return PREBUILT.remove(testClass);
+    }
+
+    /**
+     * @return the jars prebuilt for the provided test class that were not taken over yet or null if there are none
+     */
+    @Nullable
+    static Prebuilt peek(Class<?> testClass) {
+        return PREBUILT.get(testClass);
+    }
+
+    /**
+     * @return the number of the test classes with the prebuilt jars that were not taken over yet
+     */
+    static int pending() {
+        return PREBUILT.size();
+    }
+
+    @Override
+    public void testPlanExecutionStarted(TestPlan testPlan) {
+        if (!Boolean.getBoolean(PREBUILD_PROPERTY)) {
+            return;
+        }
+
+        builder = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "revapi-testjars-junit5-prebuild");
+            t.setDaemon(true);
+            return t;
+        });
+
+        for (TestIdentifier root : testPlan.getRoots()) {
+            for (TestIdentifier child : testPlan.getChildren(root)) {
+                child.getSource().ifPresent(this::prebuild);
+            }
+        }
+    }
+
+    @Override
+    public void testPlanExecutionFinished(TestPlan testPlan) {
+        if (builder == null) {
+            return;
+        }
+
+        builder.shutdown();
+
+        // the jars taken over by the extension are cleaned up by it
+        List<Prebuilt> unused = new ArrayList<>();
+        started.forEach((testClass, prebuilt) -> {
+            if (PREBUILT.remove(testClass, prebuilt)) {
+                prebuilt.jars.cancel(false);
+                unused.add(prebuilt);
+            }
+        });
+        started.clear();
+
+        try {
+            builder.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        unused.forEach(p -> p.compilerManager.cleanUp());
+        builder = null;
+    }
+
+    private void prebuild(TestSource source) {
+        if (!(source instanceof ClassSource)) {
+            return;
+        }
+
+        Class<?> testClass;
+        try {
+            testClass = ((ClassSource) source).getJavaClass();
+        } catch (Exception e) {
+            LOG.debug(
+                    "Failed to load the test class " + ((ClassSource) source).getClassName() + " to prebuild its jars.",
+                    e);
+            return;
+        }
+
+        if (testClass.isAnnotationPresent(FreshJars.class) || !usesExtension(testClass)
+                || PREBUILT.containsKey(testClass)) {
+            return;
+        }
+
+        BuildPlan plan;
+        try {
+            plan = BuildPlan.of(testClass);
+        } catch (IllegalArgumentException e) {
+            // let the extension report the invalid declarations
+            return;
+        }
+
+        if (plan.steps().isEmpty()) {
+            return;
+        }
+
+        CompilerManager compilerManager = CompilerManager.shared();
+        AtomicBoolean claimed = new AtomicBoolean();
+        CompletableFuture<Map<BuildPlan.Step, CompiledJar>> jars = CompletableFuture.supplyAsync(() -> {
+            if (!claimed.compareAndSet(false, true)) {
+                // the extension didn't wait for the build to start and compiled the jars itself
+                return emptyMap();
+            }
+
+            try {
+                return CompiledJarExtension.buildJars(compilerManager, plan, emptyMap());
+            } catch (Exception e) {
+                // reported by the extension once it takes over the jars
+                throw new CompletionException(e);
+            }
+        }, builder);
+
+        Prebuilt prebuilt = new Prebuilt(compilerManager, jars, claimed);
+        started.put(testClass, prebuilt);
+        PREBUILT.put(testClass, prebuilt);
+    }
+
+    private static boolean usesExtension(Class<?> testClass) {
+        return AnnotationSupport.findRepeatableAnnotations(testClass, ExtendWith.class).stream()
+                .anyMatch(e -> Stream.of(e.value()).anyMatch(CompiledJarExtension.class::equals));
+    }
+
+    static final class Prebuilt {
+        final CompilerManager compilerManager;
+        final CompletableFuture<Map<BuildPlan.Step, CompiledJar>> jars;
+
+        /**
+         * Set by whoever comes first - the build of the jars or the {@link #join()} finding the build not started.
+         */
+        private final AtomicBoolean claimed;
+
+        private Prebuilt(CompilerManager compilerManager, CompletableFuture<Map<BuildPlan.Step, CompiledJar>> jars,
+                AtomicBoolean claimed) {
+            this.compilerManager = compilerManager;
+            this.jars = jars;
+            this.claimed = claimed;
+        }
+
+        /**
+         * Waits for the jars to be built. If the build didn't start yet, it is cancelled instead, so that the caller
+         * doesn't wait for the jars of the other test classes queued before it.
+         *
+         * @return the jars or null if the prebuilding was cancelled and the caller needs to build the jars itself
+         *
+         * @throws CompletionException
+         *             with the cause of the failure if the jars failed to build
+         */
+        @Nullable
+        Map<BuildPlan.Step, CompiledJar> join() {
+            if (claimed.compareAndSet(false, true)) {
+                jars.cancel(false);
+                return null;
+            }
+
+            try {
+                return jars.join();
+            } catch (CancellationException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -28,7 +28,7 @@ import org.revapi.testjars.DependencyResolver;
  * Specifies the dependencies of the compiled sources.
  */
 @Retention(RetentionPolicy.RUNTIME)
-@Target(ElementType.FIELD)
+@Target({ ElementType.FIELD, ElementType.PARAMETER })
 @Repeatable(AllDependencies.class)
 public @interface Dependencies {
     /**
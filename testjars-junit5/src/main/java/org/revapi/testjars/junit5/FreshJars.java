@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018-2021 Lukas Krejci
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.revapi.testjars.junit5;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import org.revapi.testjars.CompiledJar;
+
+/**
+ * By default, the {@link CompiledJarExtension} compiles the jars of a test class once and injects the same
+ * {@link CompiledJar}s into all the instances of the class, i.e. into all its test methods under the default per-method
+ * test instance lifecycle.
+ *
+ * <p>
+ * Annotating the test class with this annotation makes the extension compile the jars anew for each test instance. This
+ * is only needed by the tests that modify the compiled files.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Inherited
+public @interface FreshJars {
+}
@@ -30,7 +30,7 @@ import java.lang.annotation.Target;
  * This annotation is repeatable in case the resources are scattered across multiple locations.
  */
 @Retention(RetentionPolicy.RUNTIME)
-@Target(ElementType.FIELD)
+@Target({ ElementType.FIELD, ElementType.PARAMETER })
 @Repeatable(AllJarResources.class)
 public @interface JarResources {
 
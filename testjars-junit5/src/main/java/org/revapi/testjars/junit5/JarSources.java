@@ -27,7 +27,8 @@ import org.revapi.testjars.CompiledJar;
 /**
  * This annotation is used to specify the sources from which the {@link CompiledJar} should be produced. The field
  * annotated by this annotation can either have type {@link CompiledJar} or alternatively
- * {@link CompiledJar.Environment} if you are only interested in analyzing the compiled classes.
+ * {@link CompiledJar.Environment} if you are only interested in analyzing the compiled classes. The same applies to the
+ * parameters of the test methods and constructors, whose jars are only compiled when the test needs them.
  *
  * <p>
  * The source files can either be located on the classpath, in which case they are specified using the
@@ -37,7 +38,7 @@ import org.revapi.testjars.CompiledJar;
  * This annotation is repeatable in case the sources are scattered across multiple locations.
  */
 @Retention(RetentionPolicy.RUNTIME)
-@Target(ElementType.FIELD)
+@Target({ ElementType.FIELD, ElementType.PARAMETER })
 @Repeatable(AllJarSources.class)
 public @interface JarSources {
     /**
@@ -17,15 +17,35 @@
 package org.revapi.testjars.junit5;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectClass;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
 
 import javax.lang.model.element.TypeElement;
 
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.engine.support.descriptor.ClassSource;
+import org.junit.platform.launcher.TestExecutionListener;
+import org.junit.platform.launcher.TestIdentifier;
+import org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder;
+import org.junit.platform.launcher.core.LauncherFactory;
+import org.junit.platform.launcher.listeners.SummaryGeneratingListener;
 import org.revapi.testjars.CompiledJar;
 
 @ExtendWith(CompiledJarExtension.class)
@@ -36,6 +56,11 @@ class ExtensionTest {
     @JarResources(root = "/", resources = "resources/res2.txt")
     private CompiledJar jar;
 
+    @JarSources(root = "/", sources = "TestClass.java")
+    @JarResources(root = "/", resources = "resources/res1.txt")
+    @JarResources(root = "/", resources = "resources/res2.txt")
+    private CompiledJar sameAsJar;
+
     @JarSources(root = "/", sources = { "TestClass.java", "TestAnotherClass.java" })
     private CompiledJar.Environment env1;
 
@@ -50,6 +75,19 @@ class ExtensionTest {
     @Dependencies("base")
     private CompiledJar depByNameJar;
 
+    private static final Set<CompiledJar> INJECTED_JARS = new HashSet<>();
+
+    @BeforeEach
+    void recordInjectedJar() {
+        INJECTED_JARS.add(jar);
+    }
+
+    @AfterAll
+    static void checkJarsCompiledOnce() {
+        // all the test instances get the same jars
+        assertEquals(1, INJECTED_JARS.size());
+    }
+
     @Test
     void testJar() {
         assertNotNull(jar.jarFile());
@@ -61,6 +99,12 @@ class ExtensionTest {
         assertNotNull(testClass);
     }
 
+    @Test
+    void testEquallyDeclaredJarsNotShared() {
+        assertNotSame(jar, sameAsJar);
+        assertNotEquals(jar.jarFile(), sameAsJar.jarFile());
+    }
+
     @Test
     void testEnv1() throws Exception {
         testEnv(env1);
@@ -77,6 +121,110 @@ class ExtensionTest {
         assertEquals(baseJar.jarFile(), depByNameJar.classpath().get(0));
     }
 
+    @Test
+    void testParameters(
+            @JarSources(root = "/", sources = "DependentTestClass.java") @Dependencies("base") CompiledJar p1,
+            @JarSources(root = "/", sources = "DependentTestClass.java") @Dependencies("base") CompiledJar p2) {
+        assertSame(p1, p2);
+        assertSame(depByNameJar, p1);
+        assertEquals(1, p1.classpath().size());
+        assertEquals(baseJar.jarFile(), p1.classpath().get(0));
+        assertNotNull(p1.analyze().elements().getTypeElement("DependentTestClass"));
+    }
+
+    @Nested
+    class NestedTest extends Fixtures {
+        @JarSources(root = "/", sources = "DependentTestClass.java")
+        @Dependencies("base")
+        private CompiledJar nestedDepByNameJar;
+
+        @Test
+        void testOuterJarsReused() {
+            assertSame(jar, inheritedJar);
+            assertSame(depByNameJar, nestedDepByNameJar);
+            assertEquals(baseJar.jarFile(), nestedDepByNameJar.classpath().get(0));
+        }
+    }
+
+    abstract static class Fixtures {
+        @JarSources(root = "/", sources = "TestClass.java")
+        @JarResources(root = "/", resources = "resources/res1.txt")
+        @JarResources(root = "/", resources = "resources/res2.txt")
+        CompiledJar inheritedJar;
+    }
+
+    @Test
+    void testPrebuiltJars() throws Exception {
+        Map<Class<?>, CompiledJarPrebuilder.Prebuilt> prebuilt = new HashMap<>();
+        TestExecutionListener recorder = new TestExecutionListener() {
+            @Override
+            public void executionStarted(TestIdentifier testIdentifier) {
+                record(testIdentifier);
+            }
+
+            @Override
+            public void executionSkipped(TestIdentifier testIdentifier, String reason) {
+                record(testIdentifier);
+            }
+
+            private void record(TestIdentifier testIdentifier) {
+                testIdentifier.getSource().filter(ClassSource.class::isInstance).map(ClassSource.class::cast)
+                        .map(ClassSource::getJavaClass).ifPresent(c -> {
+                            CompiledJarPrebuilder.Prebuilt p = CompiledJarPrebuilder.peek(c);
+                            if (p != null) {
+                                prebuilt.put(c, p);
+                            }
+                        });
+            }
+        };
+        SummaryGeneratingListener summary = new SummaryGeneratingListener();
+
+        String previous = System.setProperty(CompiledJarPrebuilder.PREBUILD_PROPERTY, "true");
+        try {
+            // the unused jars are prebuilt first, so they are ready by the time the test plan finishes
+            LauncherFactory.create().execute(
+                    LauncherDiscoveryRequestBuilder.request().selectors(selectClass(UnusedPrebuiltJars.class),
+                            selectClass(PrebuiltJars.class), selectClass(FailingPrebuiltJars.class)).build(),
+                    recorder, summary);
+        } finally {
+            if (previous == null) {
+                System.clearProperty(CompiledJarPrebuilder.PREBUILD_PROPERTY);
+            } else {
+                System.setProperty(CompiledJarPrebuilder.PREBUILD_PROPERTY, previous);
+            }
+        }
+
+        assertEquals(1, summary.getSummary().getTestsSucceededCount());
+        assertEquals(0, CompiledJarPrebuilder.pending());
+
+        // the extension took over the prebuilt jars and cleaned them up with the test class, unless the prebuilding
+        // didn't start in time and the extension compiled the jars itself
+        CompiledJarPrebuilder.Prebuilt taken = prebuilt.get(PrebuiltJars.class);
+        assertNotNull(taken);
+        Map<BuildPlan.Step, CompiledJar> takenJars = taken.join();
+        if (takenJars == null) {
+            assertTrue(taken.jars.isCancelled());
+        } else {
+            assertTrue(takenJars.containsValue(PrebuiltJars.injected));
+        }
+        assertFalse(PrebuiltJars.injected.jarPath().toFile().exists());
+
+        // the jars of the classes that were not executed were cleaned up at the end of the test plan
+        CompiledJarPrebuilder.Prebuilt unused = prebuilt.get(UnusedPrebuiltJars.class);
+        assertNotNull(unused);
+        for (CompiledJar jar : unused.join().values()) {
+            assertFalse(jar.jarPath().toFile().exists());
+        }
+
+        // the failure to prebuild is reported by the extension
+        assertNotNull(prebuilt.get(FailingPrebuiltJars.class));
+        assertEquals(1, summary.getSummary().getTestsFailedCount());
+        Throwable failure = summary.getSummary().getFailures().get(0).getException();
+        assertEquals(IllegalStateException.class, failure.getClass());
+        assertEquals("Failed to compile the jars of " + FailingPrebuiltJars.class, failure.getMessage());
+        assertFalse(failure.getCause() instanceof CompletionException);
+    }
+
     private static void testEnv(CompiledJar.Environment env) throws Exception {
         assertNotNull(env);
 
@@ -86,4 +234,38 @@ class ExtensionTest {
         assertNotNull(testAnotherClass);
 
     }
+
+    @ExtendWith(CompiledJarExtension.class)
+    static class PrebuiltJars {
+        static CompiledJar injected;
+
+        @JarSources(root = "/", sources = "TestClass.java")
+        CompiledJar jar;
+
+        @Test
+        void test() {
+            injected = jar;
+        }
+    }
+
+    @Disabled("only built, never executed")
+    @ExtendWith(CompiledJarExtension.class)
+    static class UnusedPrebuiltJars {
+        @JarSources(root = "/", sources = "TestAnotherClass.java")
+        CompiledJar jar;
+
+        @Test
+        void test() {
+        }
+    }
+
+    @ExtendWith(CompiledJarExtension.class)
+    static class FailingPrebuiltJars {
+        @JarSources(root = "/", sources = "NonExistent.java")
+        CompiledJar jar;
+
+        @Test
+        void test() {
+        }
+    }
 }